@@ -0,0 +1,36 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package android.content.pm;
+
+/**
+ * Host stand-in for the platform class, which in the SDK's android.jar throws from its constructor
+ *
+ * Has the fields the app reads; see PackageItemInfo for how the shims are used.
+ */
+public class PackageInfo {
+	public String packageName;
+	public int versionCode;
+	public String versionName;
+	public ApplicationInfo applicationInfo;
+	public long firstInstallTime;
+	public long lastUpdateTime;
+	public ActivityInfo[] activities;
+	public ActivityInfo[] receivers;
+	public ProviderInfo[] providers;
+	public ServiceInfo[] services;
+	public String[] requestedPermissions;
+}
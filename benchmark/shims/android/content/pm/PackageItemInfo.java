@@ -0,0 +1,53 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package android.content.pm;
+
+import android.os.Bundle;
+import android.os.Parcel;
+
+/**
+ * Host stand-in for the platform class, which in the SDK's android.jar throws from every constructor
+ *
+ * Put the compiled shims ahead of android.jar on the classpath so the benchmarks and host tests can create
+ * components. Only the fields are kept; ComponentInfo and its subclasses still load from android.jar on top of it.
+ */
+public class PackageItemInfo {
+	public String name;
+	public String packageName;
+	public int labelRes;
+	public CharSequence nonLocalizedLabel;
+	public int icon;
+	public int logo;
+	public Bundle metaData;
+
+	public PackageItemInfo() {
+	}
+
+	public PackageItemInfo(PackageItemInfo orig) {
+		name = orig.name;
+		packageName = orig.packageName;
+		labelRes = orig.labelRes;
+		nonLocalizedLabel = orig.nonLocalizedLabel;
+		icon = orig.icon;
+		logo = orig.logo;
+		metaData = orig.metaData;
+	}
+
+	protected PackageItemInfo(Parcel source) {
+		throw new UnsupportedOperationException("Parcels are not available on the host");
+	}
+}
@@ -0,0 +1,90 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package android.util;
+
+/**
+ * Host stand-in for the platform logger, which in the SDK's android.jar throws from every method
+ *
+ * Verbose, debug and info messages are dropped so they don't skew benchmarks; warnings and errors go to stderr.
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	public static final int ASSERT = 7;
+
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) {
+		return 0;
+	}
+
+	public static int v(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg) {
+		return 0;
+	}
+
+	public static int d(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg) {
+		return 0;
+	}
+
+	public static int i(String tag, String msg, Throwable tr) {
+		return 0;
+	}
+
+	public static int w(String tag, String msg) {
+		return println(WARN, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return println(WARN, tag, msg, tr);
+	}
+
+	public static int w(String tag, Throwable tr) {
+		return println(WARN, tag, "", tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return println(ERROR, tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return println(ERROR, tag, msg, tr);
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return level >= WARN;
+	}
+
+	private static int println(int priority, String tag, String msg, Throwable tr) {
+		System.err.println((priority == WARN ? "W/" : "E/") + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+}
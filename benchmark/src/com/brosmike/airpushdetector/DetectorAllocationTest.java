@@ -0,0 +1,127 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+
+import com.brosmike.airpushdetector.Detector.PackageScan;
+import com.brosmike.airpushdetector.Detector.ScanContext;
+
+/**
+ * Regression test for the per-component path of a scan allocating nothing once PrefixPool has warmed up
+ *
+ * Runs detectAds, isSuspicious and PrefixPool.intern over an app whose components are its own classes, whitelisted
+ * SDKs and unknown third-party packages, and checks the thread's allocation counter doesn't move. Matches are left
+ * out, since detectAds allocates the AdSource it returns.
+ *
+ * Not part of the app. Build it with MatchBenchmark, which needs the host shims, and run it with escape analysis
+ * off, since Dalvik can't remove allocations the way HotSpot's JIT may:
+ *
+ *   java -XX:-DoEscapeAnalysis -cp <out>:<shims>:<app classes>:<android.jar> com.brosmike.airpushdetector.DetectorAllocationTest
+ *
+ * Exits with status 1 if anything was allocated.
+ */
+public class DetectorAllocationTest {
+	private static final int WARMUP_ROUNDS = 20000;
+	private static final int ROUNDS = 20000;
+	/** Allowance for the allocation counter's own bookkeeping, far less than a byte per component measured */
+	private static final long SLACK_BYTES = 512;
+
+	public static void main(String[] args) {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (!(threads instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()) {
+			System.out.println("This JVM can't count allocations");
+			System.exit(1);
+		}
+		com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+		long threadId = Thread.currentThread().getId();
+
+		RuleMatcher rules = Detector.getRules();
+		ScanContext context = new ScanContext(rules, false);
+		PackageInfo pkg = new PackageInfo();
+		pkg.packageName = "com.example.app";
+		PackageItemInfo[] items = buildComponents(pkg, rules);
+		PackageScan scan = new PackageScan(pkg.packageName);
+		PrefixPool pool = PrefixPool.get();
+
+		int sink = run(pkg, items, pool, scan, context, WARMUP_ROUNDS);
+		long baselineStart = allocations.getThreadAllocatedBytes(threadId);
+		long baseline = allocations.getThreadAllocatedBytes(threadId) - baselineStart;
+		long start = allocations.getThreadAllocatedBytes(threadId);
+		sink += run(pkg, items, pool, scan, context, ROUNDS);
+		long allocated = allocations.getThreadAllocatedBytes(threadId) - start - baseline;
+		pool.takeCollected();
+
+		long components = (long) ROUNDS * items.length;
+		System.out.println(allocated + " bytes allocated over " + components + " components (" + sink + ")");
+		if (allocated > SLACK_BYTES) {
+			System.out.println("FAIL: the per-component path allocates");
+			System.exit(1);
+		}
+	}
+
+	private static int run(PackageInfo pkg, PackageItemInfo[] items, PrefixPool pool, PackageScan scan, ScanContext context, int rounds) {
+		int sink = 0;
+		for (int round = 0; round < rounds; round++) {
+			if (Detector.detectAds(pkg, items, ScanStats.COMPONENT_RECEIVER, pool, scan, context) != null) {
+				sink++;
+			}
+			for (PackageItemInfo item : items) {
+				if (Detector.isSuspicious(item, pkg)) {
+					sink += pool.intern(item.name, Detector.getPackagePrefixLength(item.name)).length();
+				}
+			}
+		}
+		return sink;
+	}
+
+	/** Components of every kind detectAds handles without a match. Exits if the rules match any of them. */
+	private static PackageItemInfo[] buildComponents(PackageInfo pkg, RuleMatcher rules) {
+		List<String> names = new ArrayList<String>();
+		names.add(pkg.packageName + ".MainActivity");
+		names.add(pkg.packageName + ".sync.SyncService");
+		for (int i = 0; i < Math.min(8, Detector.PACKAGE_WHITELIST.length); i++) {
+			names.add(Detector.PACKAGE_WHITELIST[i] + "Receiver");
+		}
+		for (int i = 0; i < 64; i++) {
+			names.add("com.thirdparty" + i + ".sdk.UpdateReceiver");
+		}
+		names.add("net.other.sdk.Service");
+		names.add("io.short.Receiver");
+		names.add("a.b.C");
+		names.add("Receiver");
+
+		PackageItemInfo[] items = new PackageItemInfo[names.size()];
+		for (int i = 0; i < items.length; i++) {
+			if (rules.classify(names.get(i)) >= 0) {
+				System.out.println("Test component " + names.get(i) + " matches an ad provider");
+				System.exit(1);
+			}
+			items[i] = new PackageItemInfo();
+			items[i].name = names.get(i);
+			items[i].packageName = pkg.packageName;
+		}
+		return items;
+	}
+}
@@ -0,0 +1,450 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageItemInfo;
+
+import com.brosmike.airpushdetector.Detector.AdProvider;
+import com.brosmike.airpushdetector.Detector.PackageScan;
+import com.brosmike.airpushdetector.Detector.RegexAdProvider;
+import com.brosmike.airpushdetector.Detector.ScanContext;
+import com.brosmike.airpushdetector.Detector.StructuralAdProvider;
+
+/**
+ * Microbenchmarks for component name matching, to judge changes to it before they ship
+ *
+ * Covers RuleMatcher.classify, each kind of AdProvider's matches(), isSuspicious, getPackagePrefix and detectAds.
+ * The benchmarks which depend on the rules are run against the built-in rules and against synthetic rule sets of
+ * up to thousands of providers (--sizes). Every set keeps the built-in providers and whitelist; the providers added
+ * are mostly prefixes, with a structural pattern every PATTERN_EVERY. Component names are drawn from a fixed
+ * synthetic inventory, so results are comparable across sizes: mostly first-party classes and whitelisted SDKs,
+ * then other third-party SDKs, known providers and obfuscated Airpush-style names.
+ *
+ * Each benchmark reports its throughput and the bytes it allocates per operation, measured from the thread's
+ * allocation counter. By default each benchmark and size runs in a fresh JVM, so the JIT's profile of one doesn't
+ * skew the next.
+ *
+ * Not part of the app. To build and run it against compiled app classes:
+ *
+ *   javac -cp <android.jar> -d <shims> $(find benchmark/shims -name '*.java')
+ *   javac -cp <app classes>:<android.jar> -d <out> benchmark/src/com/brosmike/airpushdetector/*.java
+ *   java -cp <out>:<shims>:<app classes>:<android.jar> com.brosmike.airpushdetector.MatchBenchmark [options]
+ *
+ * The SDK's android.jar only has stubs which throw, so benchmark/shims has host versions of the few Android classes
+ * the detector.* benchmarks run (PackageInfo, PackageItemInfo and Log). They must come before android.jar on the
+ * classpath; without them, the detector.* benchmarks are skipped.
+ */
+public class MatchBenchmark {
+	private static final String USAGE =
+			"Usage: MatchBenchmark [options]\n"
+			+ "  --filter TEXT    Only run benchmarks whose names contain TEXT\n"
+			+ "  --sizes N,...    Provider counts to run rule-dependent benchmarks with (default: 11,100,1000,5000)\n"
+			+ "  --time MS        Length of each iteration (default: 1000)\n"
+			+ "  --warmup N       Unmeasured iterations first (default: 5)\n"
+			+ "  --iterations N   Measured iterations (default: 5)\n"
+			+ "  --no-fork        Run everything in this JVM\n";
+
+	/** Every this many synthetic providers is a StructuralAdProvider rather than a prefix */
+	private static final int PATTERN_EVERY = 20;
+	/** Names in the inventory; a power of two, so operations can pick one with a mask */
+	private static final int INVENTORY_SIZE = 4096;
+	private static final int COMPONENTS_PER_APP = 32;
+	/** Operations between checks of the clock */
+	private static final int BATCH = 256;
+
+	/** Somewhere for results to go so the JIT can't discard the work that produced them */
+	private static volatile int sSink;
+
+	/** A single benchmarked operation on input number i (which grows without bound) */
+	private interface Operation {
+		int run(int i);
+	}
+
+	private static abstract class Benchmark {
+		final String name;
+		/** Whether the results depend on the rules, so the benchmark runs once per size */
+		final boolean usesRules;
+		Benchmark(String name, boolean usesRules) {
+			this.name = name;
+			this.usesRules = usesRules;
+		}
+		abstract Operation create(RuleMatcher rules, Inventory inventory);
+	}
+
+	private static final Benchmark[] BENCHMARKS = {
+		new Benchmark("prefix.getPackagePrefix", false) {
+			@Override Operation create(RuleMatcher rules, final Inventory inventory) {
+				return new Operation() {
+					@Override public int run(int i) {
+						return Detector.getPackagePrefix(inventory.names[i & (INVENTORY_SIZE - 1)]).length();
+					}
+				};
+			}
+		},
+		new Benchmark("prefix.getPackagePrefixLength", false) {
+			@Override Operation create(RuleMatcher rules, final Inventory inventory) {
+				return new Operation() {
+					@Override public int run(int i) {
+						return Detector.getPackagePrefixLength(inventory.names[i & (INVENTORY_SIZE - 1)]);
+					}
+				};
+			}
+		},
+		new Benchmark("provider.prefix", false) {
+			@Override Operation create(RuleMatcher rules, Inventory inventory) {
+				return matchOperation(new AdProvider("AirPush (version 4 or less)", "com.airpush."), inventory);
+			}
+		},
+		new Benchmark("provider.structural", false) {
+			@Override Operation create(RuleMatcher rules, Inventory inventory) {
+				return matchOperation(new StructuralAdProvider("Airpush", AIRPUSH_PATTERN), inventory);
+			}
+		},
+		new Benchmark("provider.regex", false) {
+			@Override Operation create(RuleMatcher rules, Inventory inventory) {
+				return matchOperation(new RegexAdProvider("Airpush", AIRPUSH_PATTERN), inventory);
+			}
+		},
+		new Benchmark("rules.linear", true) {
+			// What matching costs without RuleMatcher's trie: every provider's matches() in turn
+			@Override Operation create(final RuleMatcher rules, final Inventory inventory) {
+				final AdProvider[] providers = new AdProvider[rules.getProviderCount()];
+				for (int p = 0; p < providers.length; p++) {
+					providers[p] = rules.getProvider(p);
+				}
+				return new Operation() {
+					@Override public int run(int i) {
+						String name = inventory.names[i & (INVENTORY_SIZE - 1)];
+						for (int p = 0; p < providers.length; p++) {
+							if (providers[p].matches(name)) {
+								return p;
+							}
+						}
+						return -1;
+					}
+				};
+			}
+		},
+		new Benchmark("rules.classify", true) {
+			@Override Operation create(final RuleMatcher rules, final Inventory inventory) {
+				return new Operation() {
+					@Override public int run(int i) {
+						return rules.classify(inventory.names[i & (INVENTORY_SIZE - 1)]);
+					}
+				};
+			}
+		},
+		new Benchmark("detector.isSuspicious", true) {
+			@Override Operation create(RuleMatcher rules, final Inventory inventory) {
+				Detector.setRules(rules);
+				inventory.buildApps();
+				return new Operation() {
+					@Override public int run(int i) {
+						int component = i & (INVENTORY_SIZE - 1);
+						int app = component / COMPONENTS_PER_APP;
+						return Detector.isSuspicious(inventory.appItems[app][component % COMPONENTS_PER_APP], inventory.apps[app]) ? 1 : 0;
+					}
+				};
+			}
+		},
+		new Benchmark("detector.detectAds", true) {
+			// One operation scans every component of one app, as a scan does for each of its component types
+			@Override Operation create(RuleMatcher rules, final Inventory inventory) {
+				final ScanContext context = new ScanContext(rules, false);
+				inventory.buildApps();
+				return new Operation() {
+					@Override public int run(int i) {
+						int app = i & (inventory.apps.length - 1);
+						PackageInfo pkg = inventory.apps[app];
+						PackageItemInfo[] items = inventory.appItems[app];
+						PackageScan scan = new PackageScan(pkg.packageName);
+						PrefixPool pool = PrefixPool.get();
+						scan.adSource = Detector.detectAds(pkg, items, ScanStats.COMPONENT_RECEIVER, pool, scan, context);
+						pool.takeCollected();
+						return scan.adSource != null ? 1 : 0;
+					}
+				};
+			}
+		},
+	};
+
+	private static final String AIRPUSH_PATTERN = "com\\.[a-zA-Z]{8,9}\\.[a-zA-Z]{8,9}[\\d]{6,7}\\..*";
+
+	private static Operation matchOperation(final AdProvider provider, final Inventory inventory) {
+		return new Operation() {
+			@Override public int run(int i) {
+				return provider.matches(inventory.names[i & (INVENTORY_SIZE - 1)]) ? 1 : 0;
+			}
+		};
+	}
+
+	/** Component names modelled on real installed apps, always the same for a given seed */
+	static class Inventory {
+		private static final String[] WHITELISTED_SDKS = {
+			"com.google.android.gms.ads.AdActivity", "com.google.android.gcm.GCMBroadcastReceiver",
+			"com.facebook.LoginActivity", "com.android.vending.billing.BillingReceiver", "org.acra.CrashReportDialog",
+			"com.amazon.device.ads.AdActivity", "com.paypal.android.MEP.PayPalActivity",
+		};
+		private static final String[] OTHER_SDKS = {
+			"com.flurry.android.FlurryFullscreenTakeoverActivity", "com.millennialmedia.android.MMActivity",
+			"com.mopub.mobileads.MoPubActivity", "com.tapjoy.TJCOffersWebView", "net.hockeyapp.android.UpdateActivity",
+			"com.chartboost.sdk.CBImpressionActivity", "io.fabric.sdk.android.ActivityLifecycleManager",
+		};
+		private static final String[] PROVIDERS = {
+			"com.airpush.android.PushService", "com.airpush.android.DeliveryReceiver", "com.LeadBolt.AdNotification",
+			"com.appenda.AppendaService", "com.senddroid.SendDroidReceiver", "com.applovin.adview.AppLovinInterstitialActivity",
+		};
+		private static final String[] CLASS_NAMES = {
+			"MainActivity", "SettingsActivity", "SplashActivity", "BootReceiver", "SyncService", "WidgetProvider",
+		};
+
+		final String[] names = new String[INVENTORY_SIZE];
+		PackageInfo[] apps;
+		/** The components of each app */
+		PackageItemInfo[][] appItems;
+		private final String[] mAppPackages = new String[INVENTORY_SIZE / COMPONENTS_PER_APP];
+
+		Inventory(long seed) {
+			Random random = new Random(seed);
+			for (int app = 0; app < mAppPackages.length; app++) {
+				mAppPackages[app] = (random.nextInt(4) == 0 ? "net." : "com.") + word(random, 4, 10) + "." + word(random, 3, 8);
+			}
+			for (int i = 0; i < INVENTORY_SIZE; i++) {
+				String appPackage = mAppPackages[i / COMPONENTS_PER_APP];
+				int kind = random.nextInt(100);
+				if (kind < 55) {
+					// First-party, sometimes in a subpackage or written relative to the app's package
+					String subpackage = random.nextBoolean() ? "." : "." + word(random, 2, 6) + ".";
+					names[i] = appPackage + subpackage + pick(random, CLASS_NAMES);
+				} else if (kind < 80) {
+					names[i] = pick(random, WHITELISTED_SDKS);
+				} else if (kind < 92) {
+					names[i] = pick(random, OTHER_SDKS);
+				} else if (kind < 96) {
+					names[i] = pick(random, PROVIDERS);
+				} else {
+					// As obfuscated per app by Airpush's SDK, e.g. com.qbfjbbpr.ufcwkhpr123456.BDActivity
+					names[i] = "com." + word(random, 8, 9) + "." + word(random, 8, 9) + (100000 + random.nextInt(9000000)) + ".BDActivity";
+				}
+			}
+		}
+
+		/** The inventory grouped into apps of COMPONENTS_PER_APP. Needs Android classes which run. */
+		void buildApps() {
+			apps = new PackageInfo[mAppPackages.length];
+			appItems = new PackageItemInfo[apps.length][COMPONENTS_PER_APP];
+			for (int app = 0; app < apps.length; app++) {
+				apps[app] = new PackageInfo();
+				apps[app].packageName = mAppPackages[app];
+				for (int c = 0; c < COMPONENTS_PER_APP; c++) {
+					PackageItemInfo item = new PackageItemInfo();
+					item.name = names[app * COMPONENTS_PER_APP + c];
+					item.packageName = mAppPackages[app];
+					appItems[app][c] = item;
+				}
+			}
+		}
+	}
+
+	/** The built-in rules, plus synthetic providers up to providerCount */
+	static RuleMatcher buildRules(int providerCount) {
+		List<AdProvider> providers = new ArrayList<AdProvider>(Arrays.asList(Detector.AD_PROVIDERS));
+		Random random = new Random(providerCount);
+		for (int i = providers.size(); i < providerCount; i++) {
+			String sdk = word(random, 4, 10) + i;
+			if (i % PATTERN_EVERY == 0) {
+				providers.add(new StructuralAdProvider("Synthetic " + i, "com\\." + sdk + "[a-z]{2,4}\\..*"));
+			} else {
+				providers.add(new AdProvider("Synthetic " + i, (random.nextInt(4) == 0 ? "net." : "com.") + sdk + "."));
+			}
+		}
+		return new RuleMatcher(Detector.BUILTIN_RULES_VERSION, providers.toArray(new AdProvider[providers.size()]),
+				Detector.PACKAGE_WHITELIST);
+	}
+
+	public static void main(String[] args) throws Exception {
+		String filter = "";
+		int[] sizes = { Detector.AD_PROVIDERS.length, 100, 1000, 5000 };
+		long iterationMillis = 1000;
+		int warmups = 5;
+		int iterations = 5;
+		boolean fork = true;
+		String child = null;
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("--filter".equals(args[i])) {
+					filter = args[++i];
+				} else if ("--sizes".equals(args[i])) {
+					String[] parts = args[++i].split(",");
+					sizes = new int[parts.length];
+					for (int s = 0; s < parts.length; s++) {
+						sizes[s] = Math.max(Detector.AD_PROVIDERS.length, Integer.parseInt(parts[s].trim()));
+					}
+				} else if ("--time".equals(args[i])) {
+					iterationMillis = Long.parseLong(args[++i]);
+				} else if ("--warmup".equals(args[i])) {
+					warmups = Integer.parseInt(args[++i]);
+				} else if ("--iterations".equals(args[i])) {
+					iterations = Integer.parseInt(args[++i]);
+				} else if ("--no-fork".equals(args[i])) {
+					fork = false;
+				} else if ("--child".equals(args[i])) {
+					child = args[++i]; // Internal: run one benchmark at one size, as name@size
+				} else {
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				}
+			}
+			if (iterationMillis < 1 || iterations < 1 || warmups < 0) {
+				throw new IllegalArgumentException("Nothing to measure");
+			}
+		} catch (RuntimeException e) {
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		if (child != null) {
+			int at = child.lastIndexOf('@');
+			run(find(child.substring(0, at)), Integer.parseInt(child.substring(at + 1)), iterationMillis * 1000000, warmups, iterations);
+			return;
+		}
+
+		System.out.println(String.format(Locale.US, "%-32s %6s %16s %10s %12s", "benchmark", "rules", "ops/s", "error", "bytes/op"));
+		for (Benchmark benchmark : BENCHMARKS) {
+			if (!benchmark.name.contains(filter)) {
+				continue;
+			}
+			int[] runSizes = benchmark.usesRules ? sizes : new int[] { Detector.AD_PROVIDERS.length };
+			for (int size : runSizes) {
+				if (fork) {
+					fork(benchmark.name + "@" + size, iterationMillis, warmups, iterations);
+				} else {
+					run(benchmark, size, iterationMillis * 1000000, warmups, iterations);
+				}
+			}
+		}
+	}
+
+	private static Benchmark find(String name) {
+		for (Benchmark benchmark : BENCHMARKS) {
+			if (benchmark.name.equals(name)) {
+				return benchmark;
+			}
+		}
+		throw new IllegalArgumentException("No benchmark " + name);
+	}
+
+	/** Runs one benchmark at one size in a new JVM with this one's class path, which prints its result line */
+	private static void fork(String child, long iterationMillis, int warmups, int iterations) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				MatchBenchmark.class.getName(), "--child", child, "--time", Long.toString(iterationMillis),
+				"--warmup", Integer.toString(warmups), "--iterations", Integer.toString(iterations));
+		builder.inheritIO();
+		int exit = builder.start().waitFor();
+		if (exit != 0) {
+			System.out.println(child + ": exited with " + exit);
+		}
+	}
+
+	private static void run(Benchmark benchmark, int size, long iterationNanos, int warmups, int iterations) {
+		String label = String.format(Locale.US, "%-32s %6s", benchmark.name, benchmark.usesRules ? Integer.toString(size) : "-");
+		Operation operation;
+		try {
+			operation = benchmark.create(buildRules(size), new Inventory(42));
+			sSink += operation.run(0);
+		} catch (RuntimeException e) {
+			System.out.println(label + "  skipped: " + e); // Most likely stub Android classes
+			return;
+		} catch (LinkageError e) {
+			System.out.println(label + "  skipped: " + e);
+			return;
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		com.sun.management.ThreadMXBean allocations = threads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported()
+				? (com.sun.management.ThreadMXBean) threads : null;
+		long threadId = Thread.currentThread().getId();
+
+		for (int w = 0; w < warmups; w++) {
+			runIteration(operation, iterationNanos);
+		}
+		double[] rates = new double[iterations];
+		long totalOps = 0;
+		long totalBytes = 0;
+		for (int m = 0; m < iterations; m++) {
+			long bytesBefore = allocations != null ? allocations.getThreadAllocatedBytes(threadId) : 0;
+			long start = System.nanoTime();
+			long ops = runIteration(operation, iterationNanos);
+			long elapsed = System.nanoTime() - start;
+			if (allocations != null) {
+				totalBytes += allocations.getThreadAllocatedBytes(threadId) - bytesBefore;
+			}
+			totalOps += ops;
+			rates[m] = ops * 1e9 / elapsed;
+		}
+
+		double mean = 0;
+		for (double rate : rates) {
+			mean += rate / iterations;
+		}
+		double variance = 0;
+		for (double rate : rates) {
+			variance += (rate - mean) * (rate - mean) / Math.max(1, iterations - 1);
+		}
+		String bytesPerOp = allocations != null ? String.format(Locale.US, "%.1f", (double) totalBytes / totalOps) : "n/a";
+		System.out.println(String.format(Locale.US, "%s %16.0f %9.1f%% %12s", label, mean, 100 * Math.sqrt(variance) / mean, bytesPerOp));
+	}
+
+	/** @return How many operations ran, in batches, until at least nanos had passed */
+	private static long runIteration(Operation operation, long nanos) {
+		int sink = 0;
+		long ops = 0;
+		int i = 0;
+		long deadline = System.nanoTime() + nanos;
+		do {
+			for (int b = 0; b < BATCH; b++) {
+				sink += operation.run(i++);
+			}
+			ops += BATCH;
+		} while (System.nanoTime() < deadline);
+		sSink += sink;
+		return ops;
+	}
+
+	private static String word(Random random, int minLength, int maxLength) {
+		char[] chars = new char[minLength + random.nextInt(maxLength - minLength + 1)];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(chars);
+	}
+
+	private static String pick(Random random, String[] choices) {
+		return choices[random.nextInt(choices.length)];
+	}
+}
@@ -0,0 +1,166 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.Random;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Differential test of StructuralPattern against java.util.regex.Pattern
+ *
+ * Builds random patterns from atoms and quantifiers chosen to sit on the edges of the supported subset, and checks
+ * that every pattern StructuralPattern accepts is also valid for Pattern and matches exactly the same random inputs.
+ * Inputs mix ASCII, line terminators, other BMP characters, surrogate pairs and lone surrogates. Patterns
+ * StructuralPattern rejects must be rejected with an IllegalArgumentException, whatever their bounds.
+ *
+ * Not part of the app; it runs on a plain JVM with the app's classes (see MatchBenchmark for how to build it):
+ *
+ *   java -cp <out>:<app classes> com.brosmike.airpushdetector.StructuralPatternTest [seed]
+ *
+ * Exits with status 1 if anything differs.
+ */
+public class StructuralPatternTest {
+	private static final String[] ATOMS = {
+		"a", "b", "z", "0", "-", "_", " ", ",", "<", "\\.", "\\-", "\\\\", "\\<", "\\d", "\\w", "\\1", "\\", ".",
+		"[a-c]", "[abc]", "[\\d_]", "[-a]", "[a-]", "[\\.-z]", "[a-c-e]", "[+--]", "[z-a]", "[]", "[^a]", "[a",
+		"[.]", "[a&&b]", "{", "}", "]", "(a)", "a|b", "^", "$", "\u00e9",
+	};
+	private static final String[] QUANTIFIERS = {
+		"", "", "", "?", "*", "+", "{0}", "{2}", "{0,3}", "{1,}", "{2,1}", "{+2}", "{ 2}", "{,2}", "{64}", "{65}",
+		"{99999999999}", "{1,99999999999}", "{2147483647,}", "*?", "++", "{2}?", "{",
+	};
+	private static final String[] CHARACTERS = {
+		"a", "b", "c", "z", "0", "5", ".", "-", "_", " ", ",", "<", "\\", "+", "\n", "\r", "\u0085", "\u2028",
+		"\u00e9", "\ud83d\ude00", "\ud83d", "\ude00",
+	};
+	private static final String[] FIXED_PATTERNS = {
+		"..?.{2}",
+		"com\\.[a-zA-Z]{8,9}\\.[a-zA-Z]{8,9}[\\d]{6,7}\\..*",
+		".*",
+		"a{64}",
+		"a{63}",
+		"a{40}b{40}",
+		"a{1,}{2}",
+	};
+	/** Pattern and input pairs which are checked every run, whatever the seed */
+	private static final String[][] FIXED_INPUTS = {
+		{ "..?.{2}", "\ud83d\ude00ab" },
+		{ "..?.{2}", "\ud83d\ude00\ud83d\ude00" },
+		{ ".{2}", "\ud83d\ude00" },
+		{ "a.b", "a\ud83d\ude00b" },
+		{ "a.b", "a\u2028b" },
+		{ "[\\d]{3}", "1\u0663" },
+	};
+	private static final int RANDOM_PATTERNS = 200000;
+	private static final int INPUTS_PER_PATTERN = 50;
+
+	private static int sFailures;
+
+	public static void main(String[] args) {
+		long seed = args.length > 0 ? Long.parseLong(args[0]) : 1;
+		Random random = new Random(seed);
+		int accepted = 0;
+		for (String pattern : FIXED_PATTERNS) {
+			if (check(pattern, random)) {
+				accepted++;
+			}
+		}
+		for (String[] fixed : FIXED_INPUTS) {
+			boolean expected = Pattern.matches(fixed[0], fixed[1]);
+			if (new StructuralPattern(fixed[0]).matches(fixed[1]) != expected) {
+				fail(fixed[0], "should " + (expected ? "" : "not ") + "match " + escape(fixed[1]));
+			}
+		}
+		for (int n = 0; n < RANDOM_PATTERNS && sFailures < 20; n++) {
+			StringBuilder pattern = new StringBuilder();
+			for (int atoms = 1 + random.nextInt(4); atoms > 0; atoms--) {
+				pattern.append(ATOMS[random.nextInt(ATOMS.length)]);
+				pattern.append(QUANTIFIERS[random.nextInt(QUANTIFIERS.length)]);
+			}
+			if (check(pattern.toString(), random)) {
+				accepted++;
+			}
+		}
+		System.out.println("seed " + seed + ": " + accepted + " patterns accepted, " + sFailures + " failures");
+		if (sFailures > 0) {
+			System.exit(1);
+		}
+	}
+
+	/** @return Whether StructuralPattern accepted the pattern */
+	private static boolean check(String pattern, Random random) {
+		StructuralPattern structural;
+		try {
+			structural = new StructuralPattern(pattern);
+		} catch (IllegalArgumentException e) {
+			return false;
+		} catch (RuntimeException e) {
+			fail(pattern, "threw " + e);
+			return false;
+		}
+		Pattern regex;
+		try {
+			regex = Pattern.compile(pattern);
+		} catch (PatternSyntaxException e) {
+			fail(pattern, "accepted, but Pattern rejects it: " + e.getDescription());
+			return true;
+		}
+		for (int n = 0; n < INPUTS_PER_PATTERN; n++) {
+			String input = randomInput(pattern, random);
+			boolean expected = regex.matcher(input).matches();
+			if (structural.matches(input) != expected) {
+				fail(pattern, "should " + (expected ? "" : "not ") + "match " + escape(input));
+				break;
+			}
+		}
+		return true;
+	}
+
+	/** Random characters, or half the time characters from the pattern itself, so inputs have a chance to match */
+	private static String randomInput(String pattern, Random random) {
+		StringBuilder input = new StringBuilder();
+		boolean fromPattern = random.nextBoolean();
+		for (int length = random.nextInt(9); length > 0; length--) {
+			if (fromPattern && random.nextInt(4) != 0) {
+				char c = pattern.charAt(random.nextInt(pattern.length()));
+				input.append(c == '\\' || c == '[' || c == ']' || c == '{' || c == '}' ? 'a' : c);
+			} else {
+				input.append(CHARACTERS[random.nextInt(CHARACTERS.length)]);
+			}
+		}
+		return input.toString();
+	}
+
+	private static void fail(String pattern, String message) {
+		sFailures++;
+		System.out.println("FAIL " + escape(pattern) + ": " + message);
+	}
+
+	private static String escape(String s) {
+		StringBuilder escaped = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x20 || c >= 0x7f) {
+				escaped.append(String.format("\\u%04x", (int) c));
+			} else {
+				escaped.append(c);
+			}
+		}
+		return escaped.append('"').toString();
+	}
+}
@@ -0,0 +1,255 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Minimal read-only access to the entries of an APK (i.e. ZIP) file, for inspecting app contents without loading them
+ *
+ * Only the central directory and the entries actually opened are memory mapped, one region at a time, so even very
+ * large APKs cost little address space and no heap. Stored entries are read straight out of the mapping; deflated
+ * entries are inflated as a stream through a small buffer, so callers should read them front to back.
+ */
+public class ApkArchive implements Closeable {
+	/** ZIP compression methods */
+	public static final int METHOD_STORED = 0;
+	public static final int METHOD_DEFLATED = 8;
+
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CENTRAL_SIGNATURE = 0x02014b50;
+	private static final int LOCAL_SIGNATURE = 0x04034b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int MAX_COMMENT_SIZE = 0xFFFF;
+	private static final int LOCAL_HEADER_SIZE = 30;
+
+	/** A single file within the archive */
+	public static class Entry {
+		public final String name;
+		public final int method;
+		public final int crc;
+		public final long compressedSize;
+		public final long size;
+		final long localHeaderOffset;
+		Entry(String name, int method, int crc, long compressedSize, long size, long localHeaderOffset) {
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+		}
+	}
+
+	private final RandomAccessFile mFile;
+	private final FileChannel mChannel;
+	private final long mLength;
+	private final List<Entry> mEntries;
+
+	public ApkArchive(File file) throws IOException {
+		mFile = new RandomAccessFile(file, "r");
+		try {
+			mChannel = mFile.getChannel();
+			mLength = mChannel.size();
+			mEntries = Collections.unmodifiableList(readCentralDirectory());
+		} catch (IOException e) {
+			mFile.close();
+			throw e;
+		} catch (RuntimeException e) {
+			// Buffer underflows and the like from a malformed archive
+			mFile.close();
+			throw new IOException("Malformed archive " + file + ": " + e);
+		}
+	}
+
+	public long length() {
+		return mLength;
+	}
+
+	/** @return Every entry, in central directory order */
+	public List<Entry> getEntries() {
+		return mEntries;
+	}
+
+	/**
+	 * @return A fingerprint of the archive's contents taken from its length and central directory, which records
+	 *   the name, CRC and size of every entry. Identical APKs get the same fingerprint wherever they are installed,
+	 *   without hashing their contents.
+	 */
+	public long getContentFingerprint() {
+		long hash = 0xcbf29ce484222325L ^ mLength;
+		for (Entry entry : mEntries) {
+			hash = (hash ^ entry.name.hashCode()) * 0x100000001b3L;
+			hash = (hash ^ (entry.crc & 0xFFFFFFFFL)) * 0x100000001b3L;
+			hash = (hash ^ entry.size) * 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	public Entry getEntry(String name) {
+		for (Entry entry : mEntries) {
+			if (entry.name.equals(name)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/** Maps part of the archive. The mapping stays valid after the archive is closed. */
+	ByteBuffer map(long offset, long size) throws IOException {
+		if (offset < 0 || size < 0 || offset + size > mLength || size > Integer.MAX_VALUE) {
+			throw new IOException("Region " + offset + "+" + size + " is outside the archive");
+		}
+		ByteBuffer buffer = mChannel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		return buffer;
+	}
+
+	/**
+	 * @return The raw (possibly compressed) bytes of an entry, mapped rather than read
+	 */
+	public ByteBuffer mapRawEntry(Entry entry) throws IOException {
+		ByteBuffer local = map(entry.localHeaderOffset, Math.min(LOCAL_HEADER_SIZE, mLength - entry.localHeaderOffset));
+		if (local.remaining() < LOCAL_HEADER_SIZE || local.getInt(0) != LOCAL_SIGNATURE) {
+			throw new IOException("Bad local header for " + entry.name);
+		}
+		long dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + (local.getShort(26) & 0xFFFF) + (local.getShort(28) & 0xFFFF);
+		return map(dataOffset, entry.compressedSize);
+	}
+
+	/**
+	 * @return A stream of the entry's uncompressed contents, which should be read sequentially. Close it when done:
+	 *     for deflated entries, that frees the inflater's native memory straight away rather than at finalization.
+	 */
+	public InputStream openEntry(Entry entry) throws IOException {
+		ByteBuffer raw = mapRawEntry(entry);
+		if (entry.method == METHOD_STORED) {
+			return new ByteBufferInputStream(raw);
+		} else if (entry.method == METHOD_DEFLATED) {
+			// InflaterInputStream only ends inflaters it created itself
+			return new InflaterInputStream(new ByteBufferInputStream(raw), new Inflater(true), 8192) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inf.end();
+					}
+				}
+			};
+		}
+		throw new IOException("Unsupported compression method " + entry.method + " for " + entry.name);
+	}
+
+	@Override
+	public void close() throws IOException {
+		mFile.close();
+	}
+
+	private List<Entry> readCentralDirectory() throws IOException {
+		// The end of central directory record is at the very end, unless followed by a comment
+		long tailSize = Math.min(mLength, EOCD_SIZE + MAX_COMMENT_SIZE);
+		ByteBuffer tail = map(mLength - tailSize, tailSize);
+		int eocd = -1;
+		for (int i = (int) tailSize - EOCD_SIZE; i >= 0; i--) {
+			if (tail.getInt(i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd < 0) {
+			throw new IOException("Not a ZIP archive");
+		}
+		int entryCount = tail.getShort(eocd + 10) & 0xFFFF;
+		long directorySize = tail.getInt(eocd + 12) & 0xFFFFFFFFL;
+		long directoryOffset = tail.getInt(eocd + 16) & 0xFFFFFFFFL;
+		if (entryCount == 0xFFFF || directoryOffset == 0xFFFFFFFFL) {
+			throw new IOException("ZIP64 archives are not supported");
+		}
+
+		ByteBuffer directory = map(directoryOffset, directorySize);
+		List<Entry> entries = new ArrayList<Entry>(entryCount);
+		int pos = 0;
+		for (int i = 0; i < entryCount; i++) {
+			if (directory.getInt(pos) != CENTRAL_SIGNATURE) {
+				throw new IOException("Corrupt central directory");
+			}
+			int method = directory.getShort(pos + 10) & 0xFFFF;
+			int crc = directory.getInt(pos + 16);
+			long compressedSize = directory.getInt(pos + 20) & 0xFFFFFFFFL;
+			long size = directory.getInt(pos + 24) & 0xFFFFFFFFL;
+			int nameLength = directory.getShort(pos + 28) & 0xFFFF;
+			int extraLength = directory.getShort(pos + 30) & 0xFFFF;
+			int commentLength = directory.getShort(pos + 32) & 0xFFFF;
+			long localHeaderOffset = directory.getInt(pos + 42) & 0xFFFFFFFFL;
+
+			byte[] nameBytes = new byte[nameLength];
+			directory.position(pos + 46);
+			directory.get(nameBytes);
+			entries.add(new Entry(new String(nameBytes, "UTF-8"), method, crc, compressedSize, size, localHeaderOffset));
+
+			pos += 46 + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	/** Reads sequentially from a (typically mapped) buffer without copying it */
+	static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer mBuffer;
+		ByteBufferInputStream(ByteBuffer buffer) {
+			mBuffer = buffer;
+		}
+		@Override
+		public int read() {
+			return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+		}
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!mBuffer.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, mBuffer.remaining());
+			mBuffer.get(b, off, len);
+			return len;
+		}
+		@Override
+		public long skip(long n) {
+			int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+			mBuffer.position(mBuffer.position() + skipped);
+			return skipped;
+		}
+		@Override
+		public int available() {
+			return mBuffer.remaining();
+		}
+	}
+}
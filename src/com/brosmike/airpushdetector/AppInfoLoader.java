@@ -0,0 +1,184 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.graphics.Bitmap;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.util.LruCache;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * Loads app labels and icons off the UI thread for list rows, keeping recently used ones in a cache bounded by the
+ * size of their bitmaps
+ *
+ * Rows show a placeholder until their app is loaded. When a recycled row is bound to a different app, the request
+ * for its old app is cancelled, so fast scrolling only ever loads what is (or was very recently) on screen.
+ *
+ * All methods must be called on the UI thread.
+ */
+public class AppInfoLoader {
+	/** Fraction of the heap the cache may use */
+	private static final int HEAP_FRACTION = 16;
+
+	/** A loaded label and icon */
+	private static class AppInfo {
+		final CharSequence label;
+		final Drawable icon;
+		final int bytes;
+		AppInfo(CharSequence label, Drawable icon) {
+			this.label = label;
+			this.icon = icon;
+			this.bytes = estimateBytes(icon) + 2 * label.length();
+		}
+	}
+
+	private final PackageManager mPackageManager;
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final ExecutorService mExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "AppInfoLoader");
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	});
+	private final LruCache<String, AppInfo> mCache;
+	// The request each icon view is waiting on. Rows are recycled, so this never holds more than a screenful.
+	private final HashMap<ImageView, Request> mPending = new HashMap<ImageView, Request>();
+	private Drawable mPlaceholderIcon;
+
+	public AppInfoLoader(PackageManager packageManager) {
+		mPackageManager = packageManager;
+		mCache = new LruCache<String, AppInfo>((int) (Runtime.getRuntime().maxMemory() / HEAP_FRACTION)) {
+			@Override
+			protected int sizeOf(String packageName, AppInfo appInfo) {
+				return appInfo.bytes;
+			}
+		};
+	}
+
+	/**
+	 * Shows an installed app's label and icon in a row, immediately if they are cached and otherwise once they've
+	 * loaded. Apps are looked up by name, so rows don't need to hold on to their ApplicationInfo.
+	 */
+	public void bind(String packageName, TextView labelView, ImageView iconView) {
+		Request previous = mPending.remove(iconView);
+		if (previous != null) {
+			previous.cancelled = true;
+		}
+
+		AppInfo cached = mCache.get(packageName);
+		if (cached != null) {
+			labelView.setText(cached.label);
+			iconView.setImageDrawable(cached.icon);
+			return;
+		}
+
+		labelView.setText(packageName);
+		if (mPlaceholderIcon == null) {
+			mPlaceholderIcon = mPackageManager.getDefaultActivityIcon();
+		}
+		iconView.setImageDrawable(mPlaceholderIcon);
+
+		Request request = new Request(packageName, labelView, iconView);
+		mPending.put(iconView, request);
+		mExecutor.execute(request);
+	}
+
+	/** Cancels everything outstanding. The loader can't be used afterwards. */
+	public void shutdown() {
+		for (Request request : mPending.values()) {
+			request.cancelled = true;
+		}
+		mPending.clear();
+		mExecutor.shutdownNow();
+		mCache.evictAll();
+	}
+
+	/** Loads on the worker thread, then applies the result on the UI thread if its row still wants it */
+	private class Request implements Runnable {
+		private final String mPackageName;
+		private final TextView mLabelView;
+		private final ImageView mIconView;
+		volatile boolean cancelled = false;
+		private AppInfo mResult;
+
+		Request(String packageName, TextView labelView, ImageView iconView) {
+			mPackageName = packageName;
+			mLabelView = labelView;
+			mIconView = iconView;
+		}
+
+		@Override
+		public void run() {
+			if (cancelled) {
+				return;
+			}
+			if (mResult == null) {
+				// Another row may have loaded the same app while we were queued
+				mResult = mCache.get(mPackageName);
+				if (mResult == null) {
+					mResult = load(mPackageName);
+					mCache.put(mPackageName, mResult);
+				}
+				mHandler.post(this);
+			} else if (mPending.get(mIconView) == this) {
+				mPending.remove(mIconView);
+				mLabelView.setText(mResult.label);
+				mIconView.setImageDrawable(mResult.icon);
+			}
+		}
+	}
+
+	/** Called on the worker thread */
+	private AppInfo load(String packageName) {
+		try {
+			ApplicationInfo app = mPackageManager.getApplicationInfo(packageName, 0);
+			return new AppInfo(mPackageManager.getApplicationLabel(app), app.loadIcon(mPackageManager));
+		} catch (NameNotFoundException e) {
+			// Uninstalled since it was scanned
+			return new AppInfo(packageName, mPackageManager.getDefaultActivityIcon());
+		}
+	}
+
+	private static int estimateBytes(Drawable icon) {
+		if (icon == null) {
+			return 0;
+		}
+		if (icon instanceof BitmapDrawable) {
+			Bitmap bitmap = ((BitmapDrawable) icon).getBitmap();
+			if (bitmap != null) {
+				return bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		}
+		// Anything else will be rasterized at about its intrinsic size when drawn
+		return Math.max(1, icon.getIntrinsicWidth()) * Math.max(1, icon.getIntrinsicHeight()) * 4;
+	}
+}
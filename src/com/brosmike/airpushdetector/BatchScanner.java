@@ -0,0 +1,290 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command line scanner for directory trees of APK files, for triaging apps on a server rather than a device
+ *
+ * Classifies each APK's manifest components (read with ManifestParser) and then its code (with CodeScanner, as in a
+ * deep scan) with the same rules as the app, and writes one JSON object per line per APK. APKs are scanned in
+ * parallel; the directory walk blocks while the work queue is full, so memory stays bounded however many files
+ * there are.
+ *
+ * Usage: java -cp <app classes>:<android.jar> com.brosmike.airpushdetector.BatchScanner [options] <path>...
+ *
+ * android.jar is only needed to load classes; nothing from the Android framework is run.
+ */
+public class BatchScanner {
+	private static final String USAGE =
+			"Usage: BatchScanner [options] <apk or directory>...\n"
+			+ "  --threads N      APKs scanned at once (default: number of CPUs)\n"
+			+ "  --queue N        APKs waiting to be scanned before the directory walk pauses (default: 4 per thread)\n"
+			+ "  --max-size MB    Skip APKs larger than this (default: no limit)\n"
+			+ "  --rules FILE     Use a rule file written by RuleDatabase instead of the built-in rules\n"
+			+ "  --write-rules FILE  Write the rules in use to a rule file the app can install, then exit\n"
+			+ "  --output FILE    Write records here instead of standard output\n";
+
+	private final RuleMatcher mRules;
+	private final ScanStats mStats;
+	private final Writer mOut;
+	private final long mMaxBytes;
+	private final AtomicInteger mScanned = new AtomicInteger();
+	private final AtomicInteger mDetected = new AtomicInteger();
+	private final AtomicInteger mFailed = new AtomicInteger();
+
+	public BatchScanner(RuleMatcher rules, Writer out, long maxBytes) {
+		mRules = rules;
+		mStats = new ScanStats(rules);
+		mOut = out;
+		mMaxBytes = maxBytes;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int queue = -1;
+		long maxBytes = Long.MAX_VALUE;
+		File rulesFile = null;
+		File writeRulesFile = null;
+		File outputFile = null;
+		List<File> roots = new ArrayList<File>();
+		try {
+			for (int i = 0; i < args.length; i++) {
+				if ("--threads".equals(args[i])) {
+					threads = Integer.parseInt(args[++i]);
+				} else if ("--queue".equals(args[i])) {
+					queue = Integer.parseInt(args[++i]);
+				} else if ("--max-size".equals(args[i])) {
+					maxBytes = Long.parseLong(args[++i]) * 1024 * 1024;
+				} else if ("--rules".equals(args[i])) {
+					rulesFile = new File(args[++i]);
+				} else if ("--write-rules".equals(args[i])) {
+					writeRulesFile = new File(args[++i]);
+				} else if ("--output".equals(args[i])) {
+					outputFile = new File(args[++i]);
+				} else if (args[i].startsWith("--")) {
+					throw new IllegalArgumentException("Unknown option " + args[i]);
+				} else {
+					roots.add(new File(args[i]));
+				}
+			}
+			if ((roots.isEmpty() && writeRulesFile == null) || threads < 1) {
+				throw new IllegalArgumentException("Nothing to scan");
+			}
+		} catch (RuntimeException e) {
+			// Bad numbers and missing option values end up here too
+			System.err.print(USAGE);
+			System.exit(2);
+		}
+
+		RuleMatcher rules = rulesFile != null ? RuleDatabase.read(rulesFile) : Detector.getRules();
+		if (writeRulesFile != null) {
+			RuleDatabase.write(rules, writeRulesFile);
+			System.err.println("Wrote rules version " + rules.getVersion() + " to " + writeRulesFile);
+			System.exit(0);
+		}
+		OutputStream stream = outputFile != null ? new FileOutputStream(outputFile) : System.out;
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"), 64 * 1024);
+		BatchScanner scanner = new BatchScanner(rules, out, maxBytes);
+		long start = System.nanoTime();
+		scanner.scanAll(roots, threads, queue > 0 ? queue : threads * 4);
+		out.flush();
+		if (outputFile != null) {
+			out.close();
+		}
+		scanner.printSummary(System.nanoTime() - start);
+		System.exit(scanner.mFailed.get() > 0 ? 1 : 0);
+	}
+
+	/** Scans every APK under roots, returning once all have been written out */
+	public void scanAll(List<File> roots, int threads, int queue) throws InterruptedException {
+		// A full queue makes the walking thread scan an APK itself, which paces the walk to the workers
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queue), new ThreadFactory() {
+					private final AtomicInteger mCount = new AtomicInteger();
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "BatchScanner-" + mCount.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				}, new ThreadPoolExecutor.CallerRunsPolicy());
+		try {
+			for (File root : roots) {
+				walk(root, executor);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+	}
+
+	private void walk(File file, ThreadPoolExecutor executor) {
+		if (file.isDirectory()) {
+			File[] children = file.listFiles();
+			if (children == null) {
+				return; // Unreadable
+			}
+			Arrays.sort(children); // So reruns produce records in a similar order
+			for (File child : children) {
+				walk(child, executor);
+			}
+		} else if (file.getName().toLowerCase(Locale.US).endsWith(".apk")) {
+			final File apk = file;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					write(scan(apk));
+				}
+			});
+		}
+	}
+
+	/** @return A JSON record of scanning a single APK */
+	String scan(File file) {
+		long start = System.nanoTime();
+		StringBuilder record = new StringBuilder(256);
+		record.append("{\"path\":");
+		appendJsonString(record, file.getPath());
+		record.append(",\"size\":").append(file.length());
+		if (file.length() > mMaxBytes) {
+			mFailed.incrementAndGet();
+			return record.append(",\"error\":\"too large\"}").toString();
+		}
+		ApkArchive apk = null;
+		try {
+			apk = new ApkArchive(file);
+			CodeScanCache.Finding finding = scanManifest(apk, record);
+			if (finding == null) {
+				finding = CodeScanner.scan(apk, mRules, mStats);
+			}
+			mScanned.incrementAndGet();
+			record.append(",\"provider\":");
+			if (finding.providerIndex == CodeScanCache.Finding.NO_PROVIDER) {
+				record.append("null");
+			} else {
+				mDetected.incrementAndGet();
+				mStats.recordProviderHit(finding.providerIndex);
+				appendJsonString(record, mRules.getProvider(finding.providerIndex).friendlyName);
+				record.append(",\"type\":");
+				appendJsonString(record, ScanStats.COMPONENT_TYPES[finding.componentType]);
+				record.append(",\"match\":");
+				appendJsonString(record, finding.name);
+			}
+		} catch (IOException e) {
+			mFailed.incrementAndGet();
+			record.append(",\"error\":");
+			appendJsonString(record, String.valueOf(e.getMessage()));
+		} catch (RuntimeException e) {
+			// Malformed archives can trip up the parsers in ways they don't anticipate; keep going with the rest
+			mFailed.incrementAndGet();
+			record.append(",\"error\":");
+			appendJsonString(record, e.toString());
+		} finally {
+			if (apk != null) {
+				try { apk.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+		return record.append(",\"millis\":").append((System.nanoTime() - start) / 1000000).append('}').toString();
+	}
+
+	/**
+	 * Appends the APK's package name to record, or why it couldn't be read. An unreadable manifest isn't fatal, since
+	 * the code may still be readable.
+	 *
+	 * @return The first component which belongs to an ad provider, or null
+	 */
+	private CodeScanCache.Finding scanManifest(ApkArchive apk, StringBuilder record) {
+		long start = System.nanoTime();
+		CodeScanCache.Finding finding = null;
+		ManifestParser manifest = null;
+		try {
+			manifest = ManifestParser.open(apk);
+			int type;
+			while ((type = manifest.next()) != ManifestParser.END) {
+				String name = manifest.getComponentName();
+				int match = mRules.classify(name);
+				if (match >= 0) {
+					finding = new CodeScanCache.Finding(match, type, name);
+					break;
+				}
+			}
+			record.append(",\"package\":");
+			if (manifest.getPackageName() != null) {
+				appendJsonString(record, manifest.getPackageName());
+			} else {
+				record.append("null");
+			}
+		} catch (IOException e) {
+			record.append(",\"manifest_error\":");
+			appendJsonString(record, String.valueOf(e.getMessage()));
+		}
+		mStats.recordPhase(ScanStats.PHASE_MANIFEST, System.nanoTime() - start);
+		return finding;
+	}
+
+	private void write(String record) {
+		synchronized (mOut) {
+			try {
+				mOut.write(record);
+				mOut.write('\n');
+			} catch (IOException e) {
+				throw new RuntimeException("Failed to write results", e);
+			}
+		}
+	}
+
+	private void printSummary(long nanos) {
+		mStats.finish();
+		double hours = nanos / 3.6e12;
+		int total = mScanned.get() + mFailed.get();
+		System.err.println("Scanned " + mScanned.get() + " APKs, " + mDetected.get() + " with ad providers, " + mFailed.get() + " failed, in "
+				+ (nanos / 1000000) + "ms (" + (hours > 0 ? (long) (total / hours) : 0) + " APKs/hour)");
+		System.err.println(mStats);
+	}
+
+	static void appendJsonString(StringBuilder out, String s) {
+		out.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format(Locale.US, "\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		out.append('"');
+	}
+}
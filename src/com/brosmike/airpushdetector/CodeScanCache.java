@@ -0,0 +1,174 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Persisted results of Detector.detectAdsInCode, keyed by ApkArchive.getContentFingerprint rather than by package
+ *
+ * ScanCache has to throw a verdict away whenever a package's lastUpdateTime changes, which an OS update does for
+ * many packages at once without touching their APKs. Keying on the APK contents means those, along with reinstalls
+ * and APKs installed for several users, never need their code read twice.
+ *
+ * Holds at most MAX_ENTRIES findings, evicting the least recently used. Safe to use from any thread.
+ */
+public class CodeScanCache {
+	public static final String FILE_NAME = "code_scan_cache.bin";
+	public static final int MAX_ENTRIES = 1024;
+
+	/** Held while loading or saving the cache file */
+	public static final Object FILE_LOCK = new Object();
+
+	private static final String TAG = "AirPushDetectorCodeScanCache";
+	private static final int MAGIC = 0x41504444; // "APDD"
+	private static final int FORMAT_VERSION = 1;
+
+	/** What a deep scan found in one APK. A providerIndex of NO_PROVIDER means nothing was found. */
+	public static class Finding {
+		public static final int NO_PROVIDER = -1;
+		public final int providerIndex;
+		public final int componentType;
+		public final String name;
+		public Finding(int providerIndex, int componentType, String name) {
+			this.providerIndex = providerIndex;
+			this.componentType = componentType;
+			this.name = name;
+		}
+	}
+
+	private final File mFile;
+	private final RuleMatcher mRules;
+	private final LinkedHashMap<Long, Finding> mFindings = new LinkedHashMap<Long, Finding>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Finding> eldest) {
+			return size() > MAX_ENTRIES;
+		}
+	};
+	private boolean mDirty = false;
+
+	private CodeScanCache(File file, RuleMatcher rules) {
+		mFile = file;
+		mRules = rules;
+	}
+
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/** Reads the cache from disk. Missing, corrupt or outdated caches are treated as empty. */
+	public static CodeScanCache load(File file, RuleMatcher rules) {
+		CodeScanCache cache = new CodeScanCache(file, rules);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != rules.getFingerprint()) {
+				Log.i(TAG, "Discarding code scan cache built by a different version");
+				return cache;
+			}
+			// Entries are stored least recently used first, so reinserting them restores the LRU order
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				long fingerprint = in.readLong();
+				int providerIndex = in.readShort();
+				Finding finding;
+				if (providerIndex == Finding.NO_PROVIDER) {
+					finding = new Finding(Finding.NO_PROVIDER, 0, null);
+				} else {
+					if (providerIndex < 0 || providerIndex >= rules.getProviderCount()) {
+						throw new IOException("Bad provider index " + providerIndex);
+					}
+					int componentType = in.readByte();
+					if (componentType < 0 || componentType >= ScanStats.COMPONENT_TYPES.length) {
+						throw new IOException("Bad component type " + componentType);
+					}
+					finding = new Finding(providerIndex, componentType, in.readUTF());
+				}
+				cache.mFindings.put(fingerprint, finding);
+			}
+		} catch (FileNotFoundException e) {
+			// No deep scan yet
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable code scan cache", e);
+			cache.mFindings.clear();
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+		return cache;
+	}
+
+	/** Writes the cache back to disk, if it changed since it was loaded */
+	public synchronized void save() {
+		if (!mDirty) {
+			return;
+		}
+		File tempFile = new File(mFile.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeInt(mRules.getFingerprint());
+				out.writeInt(mFindings.size());
+				for (Map.Entry<Long, Finding> entry : mFindings.entrySet()) {
+					Finding finding = entry.getValue();
+					out.writeLong(entry.getKey());
+					out.writeShort(finding.providerIndex);
+					if (finding.providerIndex != Finding.NO_PROVIDER) {
+						out.writeByte(finding.componentType);
+						out.writeUTF(finding.name);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			if (!tempFile.renameTo(mFile)) {
+				throw new IOException("Could not replace " + mFile);
+			}
+			mDirty = false;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to save code scan cache", e);
+			tempFile.delete();
+		}
+	}
+
+	/** @return What a deep scan found in the APK with this fingerprint, or null if it hasn't been scanned */
+	public synchronized Finding get(long contentFingerprint) {
+		return mFindings.get(contentFingerprint);
+	}
+
+	public synchronized void put(long contentFingerprint, Finding finding) {
+		mFindings.put(contentFingerprint, finding);
+		mDirty = true;
+	}
+}
@@ -0,0 +1,107 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Finds the first ad provider in an APK's compiled code: class names in its dex files, then the JNI exports of its
+ * native libraries
+ *
+ * Uses nothing from the Android framework, so it runs the same on a device (Detector.detectAdsInCode) as on a
+ * server (BatchScanner).
+ */
+public class CodeScanner {
+	private CodeScanner() {}
+
+	/** @return The first match, or a Finding with NO_PROVIDER. Safe to call from any number of threads at once. */
+	public static CodeScanCache.Finding scan(ApkArchive apk, RuleMatcher rules, ScanStats stats) throws IOException {
+		CodeMatcher matcher = new CodeMatcher(rules);
+		long start = System.nanoTime();
+		for (ApkArchive.Entry entry : apk.getEntries()) {
+			if (matcher.matchedName != null) break;
+			if (DexScanner.isDexEntry(entry.name)) {
+				InputStream dex = apk.openEntry(entry);
+				try {
+					DexScanner.scan(dex, matcher);
+				} finally {
+					dex.close();
+				}
+			}
+		}
+		stats.recordComponents(ScanStats.COMPONENT_DEX_CLASS, matcher.classesExamined, matcher.matchedName != null ? 1 : 0);
+		stats.recordPhase(ScanStats.PHASE_DEX, System.nanoTime() - start);
+		if (matcher.matchedName != null) {
+			return new CodeScanCache.Finding(matcher.match, ScanStats.COMPONENT_DEX_CLASS, matcher.matchedName);
+		}
+
+		// The same library is usually shipped once per ABI, so only look at the first copy of each
+		start = System.nanoTime();
+		Set<String> librariesSeen = new HashSet<String>();
+		for (ApkArchive.Entry entry : apk.getEntries()) {
+			if (matcher.matchedName != null) break;
+			if (ElfScanner.isNativeLibraryEntry(entry.name) && librariesSeen.add(entry.name.substring(entry.name.lastIndexOf('/')))) {
+				try {
+					ElfScanner.scan(apk, entry, matcher);
+				} catch (IOException e) {
+					// One bad library shouldn't hide the others
+					stats.incrementCounter(ScanStats.COUNTER_UNREADABLE_LIBRARIES);
+				}
+			}
+		}
+		stats.recordComponents(ScanStats.COMPONENT_NATIVE_SYMBOL, matcher.symbolsExamined, matcher.matchedName != null ? 1 : 0);
+		stats.recordPhase(ScanStats.PHASE_NATIVE, System.nanoTime() - start);
+		if (matcher.matchedName != null) {
+			return new CodeScanCache.Finding(matcher.match, ScanStats.COMPONENT_NATIVE_SYMBOL, matcher.matchedName);
+		}
+		return new CodeScanCache.Finding(CodeScanCache.Finding.NO_PROVIDER, 0, null);
+	}
+
+	/** Classifies class names from DexScanner and JNI exports from ElfScanner, stopping at the first ad provider */
+	private static class CodeMatcher implements DexScanner.ClassNameVisitor, ElfScanner.SymbolVisitor {
+		private final RuleMatcher rules;
+		int classesExamined = 0;
+		int symbolsExamined = 0;
+		int match = -1;
+		String matchedName = null;
+		CodeMatcher(RuleMatcher rules) {
+			this.rules = rules;
+		}
+		@Override
+		public boolean visitClassName(String className) {
+			classesExamined++;
+			return classify(className);
+		}
+		@Override
+		public boolean visitSymbol(String symbol) {
+			symbolsExamined++;
+			String method = ElfScanner.jniMethodName(symbol);
+			return method != null && classify(method);
+		}
+		private boolean classify(String name) {
+			match = rules.classify(name);
+			if (match >= 0) {
+				matchedName = name;
+				return true;
+			}
+			return false;
+		}
+	}
+}
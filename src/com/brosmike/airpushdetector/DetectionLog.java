@@ -0,0 +1,118 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+/**
+ * Writes the detection log of a scan straight to a gzipped file as the scan goes, rather than holding it in memory
+ *
+ * The finished log is shared through DetectionLogProvider, so it can be attached to a report by reference however
+ * large it gets. A scan writes to a temporary file which only replaces the previous log once the scan completes.
+ */
+public class DetectionLog {
+	public static final String FILE_NAME = "detection_log.txt.gz";
+	public static final String MIME_TYPE = "application/x-gzip";
+
+	private static final String TAG = "AirPushDetectorDetectionLog";
+
+	private final File mFile;
+	private final File mTempFile;
+	private Writer mWriter;
+
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/** @return The content URI under which DetectionLogProvider serves the last complete log */
+	public static Uri getUri() {
+		return Uri.parse("content://" + DetectionLogProvider.AUTHORITY + "/" + FILE_NAME);
+	}
+
+	/** Starts a new log. If the file can't be created, the log silently discards everything and commit() fails. */
+	public DetectionLog(Context context) {
+		mFile = getFile(context);
+		mTempFile = new File(mFile.getPath() + ".tmp");
+		try {
+			mWriter = new OutputStreamWriter(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(mTempFile), 8192)), "UTF-8");
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	public void append(CharSequence text) {
+		if (mWriter == null) {
+			return;
+		}
+		try {
+			mWriter.append(text);
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/**
+	 * Finishes the log and makes it the one served by DetectionLogProvider
+	 *
+	 * @return The log's URI, or null if it could not be written
+	 */
+	public Uri commit() {
+		if (mWriter == null) {
+			return null;
+		}
+		try {
+			mWriter.close();
+			mWriter = null;
+			if (!mTempFile.renameTo(mFile)) {
+				throw new IOException("Could not replace " + mFile);
+			}
+			Log.d(TAG, "Wrote " + mFile.length() + " byte detection log");
+			return getUri();
+		} catch (IOException e) {
+			fail(e);
+			return null;
+		}
+	}
+
+	/** Throws away a partially written log, leaving any previous one in place */
+	public void abort() {
+		if (mWriter != null) {
+			try {
+				mWriter.close();
+			} catch (IOException e) {
+				// Deleting it anyway
+			}
+			mWriter = null;
+		}
+		mTempFile.delete();
+	}
+
+	private void fail(IOException e) {
+		Log.w(TAG, "Failed to write detection log", e);
+		abort();
+	}
+}
@@ -0,0 +1,103 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+/**
+ * Serves the last DetectionLog, read-only, to apps we grant access to (i.e. the email app sending a report)
+ *
+ * Not exported; access is only ever through FLAG_GRANT_READ_URI_PERMISSION on DetectionLog.getUri().
+ */
+public class DetectionLogProvider extends ContentProvider {
+	public static final String AUTHORITY = "com.brosmike.airpushdetector.detectionlog";
+
+	@Override
+	public boolean onCreate() {
+		return true;
+	}
+
+	@Override
+	public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+		if (!"r".equals(mode)) {
+			throw new FileNotFoundException("Detection logs are read-only");
+		}
+		return ParcelFileDescriptor.open(getLogFile(uri), ParcelFileDescriptor.MODE_READ_ONLY);
+	}
+
+	/** Answers the display name and size queries mail apps make before attaching a file */
+	@Override
+	public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs, String sortOrder) {
+		File file;
+		try {
+			file = getLogFile(uri);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		if (projection == null) {
+			projection = new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE };
+		}
+		Object[] row = new Object[projection.length];
+		for (int i = 0; i < projection.length; i++) {
+			if (OpenableColumns.DISPLAY_NAME.equals(projection[i])) {
+				row[i] = DetectionLog.FILE_NAME;
+			} else if (OpenableColumns.SIZE.equals(projection[i])) {
+				row[i] = file.length();
+			}
+		}
+		MatrixCursor cursor = new MatrixCursor(projection, 1);
+		cursor.addRow(row);
+		return cursor;
+	}
+
+	@Override
+	public String getType(Uri uri) {
+		return DetectionLog.MIME_TYPE;
+	}
+
+	@Override
+	public Uri insert(Uri uri, ContentValues values) {
+		throw new UnsupportedOperationException("Detection logs are read-only");
+	}
+
+	@Override
+	public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Detection logs are read-only");
+	}
+
+	@Override
+	public int delete(Uri uri, String selection, String[] selectionArgs) {
+		throw new UnsupportedOperationException("Detection logs are read-only");
+	}
+
+	private File getLogFile(Uri uri) throws FileNotFoundException {
+		File file = DetectionLog.getFile(getContext());
+		if (!DetectionLog.FILE_NAME.equals(uri.getLastPathSegment()) || !file.exists()) {
+			throw new FileNotFoundException("No detection log at " + uri);
+		}
+		return file;
+	}
+}
@@ -16,21 +16,30 @@
 
 package com.brosmike.airpushdetector;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import android.content.pm.ApplicationInfo;
+import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageItemInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
+import android.net.Uri;
 import android.os.AsyncTask;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -44,7 +53,7 @@ public class Detector {
 	 */
 	public static final AdProvider[] AD_PROVIDERS = {
 		new AdProvider("AirPush (version 4 or less)", "com.airpush."),
-		new RegexAdProvider("Airpush", "com\\.[a-zA-Z]{8,9}\\.[a-zA-Z]{8,9}[\\d]{6,7}\\..*"),
+		new StructuralAdProvider("Airpush", "com\\.[a-zA-Z]{8,9}\\.[a-zA-Z]{8,9}[\\d]{6,7}\\..*"),
 		new AdProvider("LeadBolt", "com.LeadBolt."),
 		new AdProvider("Appenda", "com.appenda."),
 		new AdProvider("IAC", "com.iac.notification."),
@@ -78,24 +87,111 @@ public class Detector {
 		"org.openintents.",
 	};
 
+	/** Version of AD_PROVIDERS and PACKAGE_WHITELIST. Must be increased whenever either changes. */
+	public static final int BUILTIN_RULES_VERSION = 1;
+
+	/**
+	 * The rules used by new scans; AD_PROVIDERS and PACKAGE_WHITELIST unless RuleDatabase has installed newer ones
+	 */
+	private static volatile RuleMatcher sRules = new RuleMatcher(BUILTIN_RULES_VERSION, AD_PROVIDERS, PACKAGE_WHITELIST);
+
 	private static final String TAG = "AirPushDetector";
 
+	/** Whether scans find every provider in each app by default, see ScanContext.completeMatch */
+	public static final boolean COMPLETE_MATCH = true;
+
+	private static final long[] NO_PROVIDERS = new long[0];
+
+	/** How long a scan may spend fetching providers and meta-data for undecided packages */
+	private static final long EXTENDED_STAGE_BUDGET_NANOS = 3000000000L;
+	private static final String BOOT_PERMISSION = "android.permission.RECEIVE_BOOT_COMPLETED";
+	/** detectAds times one suspicious prefix check in this many for ScanStats.PHASE_PREFIX */
+	private static final int PREFIX_SAMPLE_INTERVAL = 16;
+
+	/** A scan should call this once when it starts and stick with the result, even if newer rules are published */
+	public static RuleMatcher getRules() {
+		return sRules;
+	}
+
+	/** Publishes a new set of rules. Scans already in progress keep using the rules they started with. */
+	public static void setRules(RuleMatcher rules) {
+		sRules = rules;
+	}
+
 	/** Container for output from detection task to calling activity */
 	public static class AdSourcesInfo {
 		public List<AdSource> adSources = new ArrayList<AdSource>();
-		public String detectionLog;
+		/** Where DetectionLogProvider serves this scan's detection log, or null if it couldn't be written */
+		public Uri detectionLog;
+		public ScanStats stats;
+		/** Which scanned apps contain each suspicious package prefix */
+		public SuspiciousPrefixIndex suspiciousPrefixes = new SuspiciousPrefixIndex();
+		/** What changed since the last completed scan, or null if this is the first */
+		public ScanHistory.ScanDiff changes;
 	}
 
-	/** Identifies a single app which uses notification ads */
-	public static class AdSource {
-		public PackageInfo packageInfo;
-		public PackageItemInfo adComponentInfo;
-		public AdProvider adProvider;
-		public AdSource(PackageInfo packageInfo, PackageItemInfo adComponentInfo, AdProvider adProvider) {
-			this.packageInfo = packageInfo;
-			this.adComponentInfo = adComponentInfo;
-			this.adProvider = adProvider;
+	/**
+	 * Identifies a single app which uses notification ads
+	 * 
+	 * Holds only what the UI and reports need rather than the app's PackageInfo, whose component arrays would
+	 * otherwise stay reachable for as long as the results are shown. Labels and icons are loaded from packageName
+	 * when needed (see AppInfoLoader). Parcelable, so results can be kept in saved instance state.
+	 */
+	public static class AdSource implements Parcelable {
+		public final String packageName;
+		public final int versionCode;
+		/** The component, meta-data key, class or symbol which matched */
+		public final String componentName;
+		/** Index of the provider in the RuleMatcher the app was scanned with; not meaningful with other rules */
+		public final int providerIndex;
+		/** The provider's friendlyName, interned so results share one copy per provider */
+		public final String providerName;
+		public AdSource(PackageInfo pkg, String componentName, int providerIndex, AdProvider adProvider) {
+			this(pkg.packageName, pkg.versionCode, componentName, providerIndex, adProvider.friendlyName);
+		}
+		public AdSource(String packageName, int versionCode, String componentName, int providerIndex, String providerName) {
+			this.packageName = packageName;
+			this.versionCode = versionCode;
+			this.componentName = componentName;
+			this.providerIndex = providerIndex;
+			this.providerName = providerName.intern();
+		}
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof AdSource)) {
+				return false;
+			}
+			AdSource other = (AdSource) o;
+			return packageName.equals(other.packageName) && versionCode == other.versionCode
+					&& componentName.equals(other.componentName) && providerIndex == other.providerIndex
+					&& providerName.equals(other.providerName);
 		}
+		@Override
+		public int hashCode() {
+			return packageName.hashCode() * 31 + versionCode;
+		}
+		@Override
+		public int describeContents() {
+			return 0;
+		}
+		@Override
+		public void writeToParcel(Parcel dest, int flags) {
+			dest.writeString(packageName);
+			dest.writeInt(versionCode);
+			dest.writeString(componentName);
+			dest.writeInt(providerIndex);
+			dest.writeString(providerName);
+		}
+		public static final Parcelable.Creator<AdSource> CREATOR = new Parcelable.Creator<AdSource>() {
+			@Override
+			public AdSource createFromParcel(Parcel source) {
+				return new AdSource(source.readString(), source.readInt(), source.readString(), source.readInt(), source.readString());
+			}
+			@Override
+			public AdSource[] newArray(int size) {
+				return new AdSource[size];
+			}
+		};
 	}
 
 	/** Identifies a single notification ad framework */
@@ -107,7 +203,18 @@ public class Detector {
 			this.packagePrefix = packagePrefix.toLowerCase(Locale.US);
 		}
 		public boolean matches(PackageItemInfo component) {
-			return component.name.toLowerCase(Locale.US).startsWith(packagePrefix);
+			return matches(component.name);
+		}
+		public boolean matches(String componentName) {
+			return componentName.regionMatches(true, 0, packagePrefix, 0, packagePrefix.length());
+		}
+		/** @return A description of what this provider matches, which changes if its matching behavior does */
+		public String getRule() {
+			return packagePrefix;
+		}
+		/** Whether matches() is fully described by packagePrefix, allowing this to be compiled into a RuleMatcher */
+		public boolean isPrefixOnly() {
+			return true;
 		}
 	}
 	
@@ -118,145 +225,700 @@ public class Detector {
 			super(friendlyName, "");
 			this.packageRegex = Pattern.compile(packageRegex);
 		}
-		@Override public boolean matches(PackageItemInfo component) {
-			Matcher matcher = packageRegex.matcher(component.name);
+		@Override public boolean matches(String componentName) {
+			Matcher matcher = packageRegex.matcher(componentName);
 			return matcher.matches();
 		}
+		@Override public String getRule() {
+			return packageRegex.pattern();
+		}
+		@Override public boolean isPrefixOnly() {
+			return false;
+		}
+	}
+	
+	/**
+	 * As a RegexAdProvider, but limited to the simple structural patterns supported by StructuralPattern, which can be
+	 * matched without allocating or backtracking. Prefer this over RegexAdProvider wherever the pattern allows.
+	 */
+	public static class StructuralAdProvider extends AdProvider {
+		private StructuralPattern packagePattern;
+		public StructuralAdProvider(String friendlyName, String packagePattern) {
+			super(friendlyName, "");
+			this.packagePattern = new StructuralPattern(packagePattern);
+		}
+		@Override public boolean matches(String componentName) {
+			return packagePattern.matches(componentName);
+		}
+		@Override public String getRule() {
+			return packagePattern.pattern();
+		}
+		@Override public boolean isPrefixOnly() {
+			return false;
+		}
 	}
 	
 	public static String getPackagePrefix(String fullPackageName) {
 		if(fullPackageName == null) { return ""; }
+		return fullPackageName.substring(0, getPackagePrefixLength(fullPackageName));
+	}
+	
+	/**
+	 * As getPackagePrefix, but without allocating: the prefix is the first level of the name ("foo." of
+	 * "foo.bar.Baz"), or the first two when the first is com, org or net ("com.foo." of "com.foo.Bar")
+	 */
+	public static int getPackagePrefixLength(String fullPackageName) {
+		int firstPeriod = fullPackageName.indexOf('.', 1);
+		if(firstPeriod == -1) {
+			return fullPackageName.length();
+		}
+		if(firstPeriod != 3 || !(fullPackageName.startsWith("com") || fullPackageName.startsWith("org") || fullPackageName.startsWith("net"))) {
+			return firstPeriod + 1;
+		}
+		int secondPeriod = fullPackageName.indexOf('.', firstPeriod + 1);
+		return secondPeriod == -1 ? fullPackageName.length() : secondPeriod + 1;
+	}
+	
+	/** Determines if a package item looks suspicious enough to be worth reporting */
+	public static boolean isSuspicious(PackageItemInfo packageItem, PackageInfo appPackage) {
+		if(isInOwnPackage(packageItem.name, appPackage.packageName, getPackagePrefixLength(appPackage.packageName))) { return false; }
+		return !getRules().isWhitelisted(packageItem.name);
+	}
+	
+	/** Whether a component shares the first ownPrefixLength characters (see getPackagePrefixLength) of its app's name */
+	private static boolean isInOwnPackage(String componentName, String appPackageName, int ownPrefixLength) {
+		return componentName.regionMatches(0, appPackageName, 0, ownPrefixLength);
+	}
+
+	/** Time a scan may spend on an optional stage of scanPackage. Safe to share between threads. */
+	public static class StageBudget {
+		private final AtomicLong remainingNanos;
+		public StageBudget(long nanos) {
+			remainingNanos = new AtomicLong(nanos);
+		}
+		/** Once the budget is spent, remaining packages skip the stage. The last one to run may overdraw it. */
+		public boolean isAvailable() {
+			return remainingNanos.get() > 0;
+		}
+		public void spend(long nanos) {
+			remainingNanos.addAndGet(-nanos);
+		}
+	}
+
+	/** Everything shared by the packages of a single scan. Safe to use from any thread. */
+	public static class ScanContext {
+		public final RuleMatcher rules;
+		public final ScanStats stats;
+		/** Whether to also look inside each app's code for ad providers, which is much slower */
+		public final boolean deepScan;
+		/** Earlier deep scan results to reuse, or null to always read app code */
+		public final CodeScanCache codeCache;
+		/** Time this scan may spend on the extended stage of scanPackage, across all packages */
+		public final StageBudget extendedBudget = new StageBudget(EXTENDED_STAGE_BUDGET_NANOS);
+		/**
+		 * Whether to find every provider in each app rather than stopping at the first. Only apps which do contain
+		 * a provider have more left to check, so this costs next to nothing on clean ones.
+		 */
+		public final boolean completeMatch;
+		public ScanContext(RuleMatcher rules, boolean deepScan) {
+			this(rules, deepScan, null);
+		}
+		public ScanContext(RuleMatcher rules, boolean deepScan, CodeScanCache codeCache) {
+			this(rules, deepScan, COMPLETE_MATCH, codeCache);
+		}
+		public ScanContext(RuleMatcher rules, boolean deepScan, boolean completeMatch, CodeScanCache codeCache) {
+			this.rules = rules;
+			this.stats = new ScanStats(rules);
+			this.deepScan = deepScan;
+			this.completeMatch = completeMatch;
+			this.codeCache = codeCache;
+		}
+	}
+
+	/** Results of scanning a single installed package */
+	public static class PackageScan {
+		public final String packageName;
+		public AdSource adSource;
+		/** Whether the package was scanned with ScanContext.deepScan */
+		public boolean deepScanned;
+		/** Distinct getPackagePrefix values of suspicious components. Shared and immutable while empty. */
+		public Set<String> suspiciousPackages = Collections.emptySet();
+		/** Whether a scanPackage stage was skipped for lack of budget, in which case the scan shouldn't be cached */
+		public boolean incomplete;
+		/** Whether every component was checked (ScanContext.completeMatch), rather than stopping at adSource */
+		public boolean completeMatch;
+		/** Bitset over RuleMatcher provider indices of every provider matched. Shared and empty until one is. */
+		public long[] providerBits = NO_PROVIDERS;
+		/** Bitset of the ScanStats.COMPONENT_* types in which providers were matched */
+		public int matchedComponentTypes;
+		public PackageScan(String packageName) {
+			this.packageName = packageName;
+		}
 		
-		int MAX_PREFIX_LEVELS = 2;
-		List<String> TLDS = Arrays.asList("com", "org", "net");
+		/** Allocates at most once per package, however many matches there are */
+		void addMatch(int providerIndex, int componentType, int providerCount) {
+			if(providerBits.length == 0) {
+				providerBits = new long[(providerCount + 63) >>> 6];
+			}
+			providerBits[providerIndex >>> 6] |= 1L << providerIndex;
+			matchedComponentTypes |= 1 << componentType;
+		}
 		
-		int periodIndex = 0;
-		int newPeriodIndex = 0;
-		for(int i=0; i<MAX_PREFIX_LEVELS; ++i) {
-			newPeriodIndex = fullPackageName.indexOf('.', periodIndex+1);
-			if(newPeriodIndex == -1) {
-				return fullPackageName;
+		public boolean hasProvider(int providerIndex) {
+			int word = providerIndex >>> 6;
+			return word < providerBits.length && (providerBits[word] & (1L << providerIndex)) != 0;
+		}
+		
+		public int getProviderCount() {
+			int count = 0;
+			for(long word : providerBits) {
+				count += Long.bitCount(word);
 			}
-			if(!TLDS.contains(fullPackageName.substring(periodIndex, newPeriodIndex))) {
-				return fullPackageName.substring(0, newPeriodIndex+1);
+			return count;
+		}
+		
+		/**
+		 * Appends an entry to the detection log if we found anything fishy about this app
+		 * 
+		 * @param rules The rules the app was scanned with, to name every provider it matched
+		 */
+		public void appendLogEntry(StringBuilder detectionLogBuilder, RuleMatcher rules) {
+			if(adSource == null && suspiciousPackages.isEmpty()) {
+				return;
 			}
-			periodIndex = newPeriodIndex;
+			detectionLogBuilder.append('[');
+			detectionLogBuilder.append(packageName);
+			detectionLogBuilder.append(": ");
+			
+			// Found an ad framework match
+			if(adSource != null) {
+				detectionLogBuilder.append("MATCH=");
+				detectionLogBuilder.append(adSource.providerName);
+				// Any others, from a complete match
+				for(int i = 0; i < rules.getProviderCount(); i++) {
+					if(hasProvider(i) && i != adSource.providerIndex) {
+						detectionLogBuilder.append('+').append(rules.getProvider(i).friendlyName);
+					}
+				}
+				if(completeMatch) {
+					detectionLogBuilder.append(" IN=");
+					String separator = "";
+					for(int type = 0; type < ScanStats.COMPONENT_TYPES.length; type++) {
+						if((matchedComponentTypes & (1 << type)) != 0) {
+							detectionLogBuilder.append(separator).append(ScanStats.COMPONENT_TYPES[type]);
+							separator = ",";
+						}
+					}
+				}
+				detectionLogBuilder.append(" ");
+			}
+			
+			// Found suspicious looking packages in use (independent of match)
+			if(!suspiciousPackages.isEmpty()) {
+				detectionLogBuilder.append(TextUtils.join(", ", suspiciousPackages));
+			}
+			
+			detectionLogBuilder.append("]\n");
 		}
-		return fullPackageName.substring(0, periodIndex+1);
 	}
-	
-	/** Determines if a package item looks suspicious enough to be worth reporting */
-	public static boolean isSuspicious(PackageItemInfo packageItem, PackageInfo appPackage) {
-		if(packageItem.name.startsWith(getPackagePrefix(appPackage.packageName))) { return false; }
-		for(String whitelistedPrefix : PACKAGE_WHITELIST) {
-			if(packageItem.name.startsWith(whitelistedPrefix)) { return false; }
+
+	/** Fetches the components of a single package and checks them for ad providers. Safe to call from any thread. */
+	public static PackageScan scanPackage(PackageFetcher fetcher, String packageName, ScanContext context) throws NameNotFoundException {
+		return scanPackage(fetcher.fetch(packageName), fetcher, context);
+	}
+
+	/** Checks the components of an already fetched package for ad providers, without the extended stage */
+	public static PackageScan scanPackage(PackageInfo pkgInfo, ScanContext context) {
+		return scanPackage(pkgInfo, null, context);
+	}
+
+	/**
+	 * Checks an already fetched package for ad providers. Safe to call from any thread.
+	 * 
+	 * Each stage costs more than the one before and only runs if the earlier ones found no provider (the cached
+	 * verdict, checked by the caller, comes before all of them):
+	 * 1. The activities, receivers and services fetched with the package
+	 * 2. Providers and meta-data keys, fetched separately, and only for packages which stage 1 left undecided (see
+	 *    isUndecided) while context.extendedBudget lasts
+	 * 3. The app's code, for deep scans only
+	 * 
+	 * @param fetcher Where to fetch extra information for stage 2, or null to skip it
+	 */
+	public static PackageScan scanPackage(PackageInfo pkgInfo, PackageFetcher fetcher, ScanContext context) {
+		Log.v(TAG, "Scanning package " + pkgInfo.packageName);
+
+		long start = System.nanoTime();
+		PackageScan scan = new PackageScan(pkgInfo.packageName);
+		scan.completeMatch = context.completeMatch;
+		PrefixPool prefixes = PrefixPool.get();
+		// A complete match carries on through every stage but the code scan, keeping the first AdSource found
+		boolean all = context.completeMatch;
+		AdSource src = detectAds(pkgInfo, pkgInfo.activities, ScanStats.COMPONENT_ACTIVITY, prefixes, scan, context);
+		AdSource next;
+		if(src == null || all) {
+			next = detectAds(pkgInfo, pkgInfo.receivers, ScanStats.COMPONENT_RECEIVER, prefixes, scan, context);
+			if(src == null) src = next;
+		}
+		if(src == null || all) {
+			next = detectAds(pkgInfo, pkgInfo.services, ScanStats.COMPONENT_SERVICE, prefixes, scan, context);
+			if(src == null) src = next;
+		}
+		context.stats.recordPhase(ScanStats.PHASE_MATCH, System.nanoTime() - start);
+		
+		if((src == null || all) && fetcher != null && isUndecided(pkgInfo, prefixes)) {
+			if(context.extendedBudget.isAvailable()) {
+				next = detectAdsExtended(pkgInfo, fetcher, prefixes, scan, context);
+				if(src == null) src = next;
+			} else {
+				context.stats.incrementCounter(ScanStats.COUNTER_OVER_BUDGET);
+				scan.incomplete = true;
+			}
 		}
-		return true;
+		scan.suspiciousPackages = prefixes.takeCollected();
+		
+		if(src == null && context.deepScan) {
+			src = detectAdsInCode(pkgInfo, scan, context);
+		}
+		scan.adSource = src;
+		scan.deepScanned = context.deepScan;
+		return scan;
 	}
 
-	/** Detects all ad providers in a series of PackageItemInfos (receivers, services, etc) */
-	public static AdSource detectAds(PackageInfo pkg, PackageItemInfo[] items, String itemTypeTag, Set<String> suspiciousPackages) {
+	/**
+	 * Whether a package which passed the first stage is still worth a closer look: it has components outside its own
+	 * package which aren't whitelisted, or it asks to start at boot as push ad SDKs do
+	 */
+	private static boolean isUndecided(PackageInfo pkgInfo, PrefixPool suspiciousPackages) {
+		if(suspiciousPackages.hasCollected()) {
+			return true;
+		}
+		if(pkgInfo.requestedPermissions != null) {
+			for(String permission : pkgInfo.requestedPermissions) {
+				if(BOOT_PERMISSION.equals(permission)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/** Stage 2 of scanPackage: fetches and checks the package's providers, then its meta-data keys */
+	private static AdSource detectAdsExtended(PackageInfo pkgInfo, PackageFetcher fetcher, PrefixPool suspiciousPackages, PackageScan scan, ScanContext context) {
+		long start = System.nanoTime();
+		try {
+			PackageInfo extended = fetcher.fetchExtended(pkgInfo.packageName);
+			context.stats.incrementCounter(ScanStats.COUNTER_EXTENDED);
+			AdSource src = detectAds(pkgInfo, extended.providers, ScanStats.COMPONENT_PROVIDER, suspiciousPackages, scan, context);
+			if((src == null || context.completeMatch) && extended.applicationInfo != null) {
+				AdSource next = detectAdsInMetaData(pkgInfo, extended.applicationInfo.metaData, scan, context);
+				if(src == null) src = next;
+			}
+			return src;
+		} catch (NameNotFoundException e) {
+			return null; // Uninstalled since the first stage; the next scan will forget it
+		} finally {
+			long elapsed = System.nanoTime() - start;
+			context.extendedBudget.spend(elapsed);
+			context.stats.recordPhase(ScanStats.PHASE_EXTENDED, elapsed);
+		}
+	}
+
+	/** SDKs commonly take their API keys as meta-data named after their own package, e.g. com.airpush.android.APIKEY */
+	private static AdSource detectAdsInMetaData(PackageInfo pkg, Bundle metaData, PackageScan scan, ScanContext context) {
+		if(metaData == null) {
+			return null;
+		}
+		int examined = 0;
+		int matched = 0;
+		AdSource found = null;
+		for(String key : metaData.keySet()) {
+			examined++;
+			int match = context.rules.classify(key);
+			if(match >= 0) {
+				matched++;
+				scan.addMatch(match, ScanStats.COMPONENT_META_DATA, context.rules.getProviderCount());
+				if(found == null) {
+					AdProvider adProvider = context.rules.getProvider(match);
+					Log.i(TAG, "Detected ad framework " + adProvider.friendlyName + " in package " + pkg.packageName + " as META_DATA " + key);
+					found = new AdSource(pkg, key, match, adProvider);
+				}
+				if(!context.completeMatch) break;
+			}
+		}
+		context.stats.recordComponents(ScanStats.COMPONENT_META_DATA, examined, matched);
+		return found;
+	}
+
+	/**
+	 * Looks for ad provider classes in an app's code rather than its manifest, which catches SDKs that register
+	 * their components dynamically or under other names. Reads the type tables of every classes*.dex in the APK
+	 * and the JNI exports of its native libraries without extracting them, but is still far slower than detectAds.
+	 * 
+	 * Results are looked up in and added to context.codeCache, if there is one.
+	 */
+	public static AdSource detectAdsInCode(PackageInfo pkg, PackageScan scan, ScanContext context) {
+		if(pkg.applicationInfo == null || pkg.applicationInfo.sourceDir == null) {
+			return null;
+		}
+		ApkArchive apk = null;
+		try {
+			apk = new ApkArchive(new File(pkg.applicationInfo.sourceDir));
+			long fingerprint = apk.getContentFingerprint();
+			CodeScanCache.Finding finding = context.codeCache != null ? context.codeCache.get(fingerprint) : null;
+			if(finding != null) {
+				context.stats.incrementCounter(ScanStats.COUNTER_CODE_CACHED);
+			} else {
+				finding = CodeScanner.scan(apk, context.rules, context.stats);
+				if(context.codeCache != null) {
+					context.codeCache.put(fingerprint, finding);
+				}
+			}
+			if(finding.providerIndex == CodeScanCache.Finding.NO_PROVIDER) {
+				return null;
+			}
+			
+			AdProvider adProvider = context.rules.getProvider(finding.providerIndex);
+			Log.i(TAG, "Detected ad framework " + adProvider.friendlyName + " in package " + pkg.packageName + " as " + ScanStats.COMPONENT_TYPES[finding.componentType] + " " + finding.name);
+			scan.addMatch(finding.providerIndex, finding.componentType, context.rules.getProviderCount());
+			return new AdSource(pkg, finding.name, finding.providerIndex, adProvider);
+		} catch (IOException e) {
+			Log.w(TAG, "Could not read code of " + pkg.packageName, e);
+			return null;
+		} finally {
+			if(apk != null) {
+				try { apk.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+	}
+
+	/**
+	 * Detects all ad providers in a series of PackageItemInfos (receivers, services, etc)
+	 * 
+	 * Allocates nothing per component, since apps can have hundreds of them, except for the one AdSource returned.
+	 * With context.completeMatch, carries on past the first provider and records every match in scan.
+	 * 
+	 * @param componentType One of the ScanStats.COMPONENT_* constants, describing what items are
+	 * @param suspiciousPackages The calling thread's pool, which collects the prefixes of suspicious components
+	 * @return The first provider found
+	 */
+	public static AdSource detectAds(PackageInfo pkg, PackageItemInfo[] items, int componentType, PrefixPool suspiciousPackages, PackageScan scan, ScanContext context) {
 		if(items == null) {
 			return null;
 		}
+		int ownPrefixLength = getPackagePrefixLength(pkg.packageName);
+		// Tallied locally and recorded once, to keep the stats out of the per-component loop. Only one prefix check in
+		// PREFIX_SAMPLE_INTERVAL is timed, so most components don't pay for reading the clock.
+		int examined = 0;
+		int prefixChecks = 0;
+		int prefixSamples = 0;
+		long prefixSampleNanos = 0;
+		int matched = 0;
+		AdSource found = null;
 		for(PackageItemInfo item : items) {
 			if(item == null) continue; // Apparently this happens sometimes. Undocmented behavior is great.
+			examined++;
 			
-			for(AdProvider adProvider : AD_PROVIDERS) {
-    			if(adProvider.matches(item)) {
-    				Log.i(TAG, "Detected ad framework " + adProvider.friendlyName + " in package " + pkg.packageName + " as " + itemTypeTag + " " + item.name);
-    				return new AdSource(pkg, item, adProvider);
-    			}
+			int match = context.rules.classify(item.name);
+			if(match >= 0) {
+				matched++;
+				scan.addMatch(match, componentType, context.rules.getProviderCount());
+				if(found == null) {
+					AdProvider adProvider = context.rules.getProvider(match);
+					Log.i(TAG, "Detected ad framework " + adProvider.friendlyName + " in package " + pkg.packageName + " as " + ScanStats.COMPONENT_TYPES[componentType] + " " + item.name);
+					found = new AdSource(pkg, item.name, match, adProvider);
+				}
+				if(!context.completeMatch) break;
+				continue;
 			}
 			
-			if(isSuspicious(item, pkg)) {
-				suspiciousPackages.add(getPackagePrefix(item.name));
+			if(match == RuleMatcher.UNKNOWN) {
+				boolean sample = prefixChecks++ % PREFIX_SAMPLE_INTERVAL == 0;
+				long start = sample ? System.nanoTime() : 0;
+				if(!isInOwnPackage(item.name, pkg.packageName, ownPrefixLength)) {
+					suspiciousPackages.collect(suspiciousPackages.intern(item.name, getPackagePrefixLength(item.name)));
+				}
+				if(sample) {
+					prefixSampleNanos += System.nanoTime() - start;
+					prefixSamples++;
+				}
 			}
 		}
-		return null;
+		context.stats.recordComponents(componentType, examined, matched);
+		if(prefixSamples > 0) {
+			// Scaled up from the samples to an estimate for every check
+			context.stats.addPhaseTotal(ScanStats.PHASE_PREFIX, prefixSampleNanos * prefixChecks / prefixSamples, prefixChecks);
+		}
+		return found;
 	}
 
 	/** An AsyncTask which iterates through every installed app and finds any that use known AdProviders
 	 * 
 	 *  Also displays a progress dialog while the iteration is in progress
 	 */
-	public static class DetectAsyncTask extends AsyncTask<Void, Integer, AdSourcesInfo> {
+	public static class DetectAsyncTask extends AsyncTask<Void, DetectAsyncTask.Progress, AdSourcesInfo> {
 		public static interface Callbacks {
 			public void onTaskFinished(AdSourcesInfo detectResult);
 			public void onProgressUpdate(int packagesScanned, int packagesTotal);
+			/** Called as soon as each AdSource is found, in the same order they will appear in the final results */
+			public void onAdSourceFound(AdSource adSource);
+		}
+		
+		/** Either a progress update or a newly found AdSource, published from the background thread */
+		static class Progress {
+			final int packagesScanned;
+			final int packagesTotal;
+			final AdSource adSource;
+			Progress(int packagesScanned, int packagesTotal, AdSource adSource) {
+				this.packagesScanned = packagesScanned;
+				this.packagesTotal = packagesTotal;
+				this.adSource = adSource;
+			}
 		}
 		
 		private final Callbacks mCallbacks;
+		private final Context mContext;
 		private final PackageManager mPackageManager;
+		private final boolean mDeepScan;
+		private final boolean mRevalidation;
+		
+		/**
+		 * Held by each task for as long as it scans. Before Honeycomb, AsyncTasks run in parallel and cancel(false)
+		 * doesn't stop one already running, so a revalidation could otherwise still be saving the caches while the
+		 * user's own scan starts.
+		 */
+		private static final Object SCAN_LOCK = new Object();
+		
+		/**
+		 * Save the caches after this many freshly scanned packages, or this long, whichever comes first. A scan which is
+		 * cancelled or killed then loses little work, since the next one finds those packages in the cache.
+		 */
+		private static final int SAVE_PACKAGES = 50;
+		private static final long SAVE_INTERVAL_NANOS = 5000000000L;
+
+		/** @param deepScan Whether to also look inside each app's code, see detectAdsInCode */
+		public DetectAsyncTask(Context context, Callbacks callbacks, boolean deepScan) {
+			this(context, callbacks, deepScan, false);
+		}
 
-		public DetectAsyncTask(PackageManager packageManager, Callbacks callbacks) {
-			mPackageManager = packageManager;
+		/**
+		 * @param revalidation Whether the scan only checks results already shown, in which case it updates the caches
+		 *     and ScanSnapshot but leaves the detection log and ScanHistory to the user's own scans
+		 */
+		public DetectAsyncTask(Context context, Callbacks callbacks, boolean deepScan, boolean revalidation) {
+			mContext = context.getApplicationContext();
+			mPackageManager = mContext.getPackageManager();
 			mCallbacks = callbacks;
+			mDeepScan = deepScan;
+			mRevalidation = revalidation;
 		}
 
 		@Override
 		protected AdSourcesInfo doInBackground(Void... unused) {
+			synchronized(SCAN_LOCK) {
+				if(isCancelled()) {
+					return null; // Replaced while waiting for another scan to stop
+				}
+				return scan();
+			}
+		}
+
+		private AdSourcesInfo scan() {
 			AdSourcesInfo sources = new AdSourcesInfo();
-			StringBuilder detectionLogBuilder = new StringBuilder();
+			// Each entry is built here and then streamed to the log file, so the log is never held in memory
+			DetectionLog detectionLog = mRevalidation ? null : new DetectionLog(mContext);
+			StringBuilder logEntry = new StringBuilder();
+			RuleDatabase.ensureLoaded(mContext);
+			RuleMatcher rules = getRules();
 			
-			List<ApplicationInfo> appInfos = mPackageManager.getInstalledApplications(0);
-			int appCount = appInfos.size();
-
+			long start = System.nanoTime();
+			ScanCache cache;
+			synchronized(ScanCache.FILE_LOCK) {
+				cache = ScanCache.load(ScanCache.getFile(mContext), rules);
+			}
+			CodeScanCache codeCache = null;
+			if(mDeepScan) {
+				synchronized(CodeScanCache.FILE_LOCK) {
+					codeCache = CodeScanCache.load(CodeScanCache.getFile(mContext), rules);
+				}
+			}
+			ScanContext context = new ScanContext(rules, mDeepScan, codeCache);
+			ScanStats stats = context.stats;
+			stats.recordPhase(ScanStats.PHASE_CACHE, System.nanoTime() - start);
+			
+			start = System.nanoTime();
+			List<PackageInfo> pkgInfos = mPackageManager.getInstalledPackages(0);
+			int appCount = pkgInfos.size();
+			stats.recordPhase(ScanStats.PHASE_ENUMERATE, System.nanoTime() - start);
+			
+			// Only packages which are new or changed since the last scan need their components fetched
+			PackageScan[] cachedScans = new PackageScan[appCount];
+			List<String> packagesToScan = new ArrayList<String>();
 			for(int appIndex = 0; appIndex < appCount; appIndex++) {
-				if (isCancelled()) {
-					return null;
+				cachedScans[appIndex] = cache.get(pkgInfos.get(appIndex), context);
+				if(cachedScans[appIndex] == null) {
+					packagesToScan.add(pkgInfos.get(appIndex).packageName);
 				}
-				publishProgress(appIndex, appCount);
-								
-				ApplicationInfo appInfo = appInfos.get(appIndex);
-				Set<String> suspiciousPackages = new HashSet<String>();
-				
-				try {
-					PackageInfo pkgInfo = mPackageManager.getPackageInfo(appInfo.packageName,
-							PackageManager.GET_ACTIVITIES |
-							PackageManager.GET_RECEIVERS  |
-							PackageManager.GET_SERVICES);
-
-					Log.v(TAG, "Scanning package " + pkgInfo.packageName);
-
-					AdSource src        = detectAds(pkgInfo, pkgInfo.activities, "ACTIVITY", suspiciousPackages);
-					if(src == null) src = detectAds(pkgInfo, pkgInfo.receivers,  "RECEIVER", suspiciousPackages);
-					if(src == null) src = detectAds(pkgInfo, pkgInfo.services,   "SERVICE",  suspiciousPackages);
-
-					// Log info if we find anything fishy about this app
-					if(src != null || !suspiciousPackages.isEmpty()) {
-						detectionLogBuilder.append('[');
-						detectionLogBuilder.append(appInfo.packageName);
-						detectionLogBuilder.append(": ");
-						
-						// Found an ad framework match
-						if(src != null) {
-							sources.adSources.add(src);
-							
-							detectionLogBuilder.append("MATCH=");
-							detectionLogBuilder.append(src.adProvider.friendlyName);
-							detectionLogBuilder.append(" ");
+			}
+			Log.d(TAG, "Scanning " + packagesToScan.size() + " of " + appCount + " packages, rest are cached");
+			PackageFetcher fetcher = new PackageFetcher(mPackageManager, stats, pkgInfos);
+			fetcher.prefetch(packagesToScan, appCount);
+
+			// Results come back in inventory order, so only this thread ever touches sources or the log
+			ScanEngine engine = new ScanEngine(fetcher, packagesToScan, context);
+			Map<String, ScanHistory.AppState> findings = new HashMap<String, ScanHistory.AppState>();
+			List<String> failed = new ArrayList<String>();
+			// Everything enumerated except packages uninstalled before the engine reached them
+			Set<String> installed = new HashSet<String>();
+			int sinceSave = 0;
+			long lastSave = System.nanoTime();
+			int appIndex = 0;
+			try {
+				for(; appIndex < appCount; appIndex++) {
+					if (isCancelled()) {
+						if(detectionLog != null) {
+							detectionLog.abort();
+						}
+						saveCaches(cache, codeCache);
+						return null;
+					}
+					if(sinceSave >= SAVE_PACKAGES || (sinceSave > 0 && System.nanoTime() - lastSave > SAVE_INTERVAL_NANOS)) {
+						start = System.nanoTime();
+						saveCaches(cache, codeCache);
+						stats.recordPhase(ScanStats.PHASE_CACHE, System.nanoTime() - start);
+						sinceSave = 0;
+						lastSave = System.nanoTime();
+					}
+					publishProgress(new Progress(appIndex, appCount, null));
+					
+					stats.incrementCounter(ScanStats.COUNTER_PACKAGES);
+					PackageScan scan = cachedScans[appIndex];
+					if(scan == null) {
+						scan = engine.next();
+						if(scan == null) {
+							String packageName = pkgInfos.get(appIndex).packageName;
+							if(engine.hasFailed(packageName)) {
+								failed.add(packageName); // Already logged and counted by the engine
+								installed.add(packageName);
+							} else {
+								stats.incrementCounter(ScanStats.COUNTER_VANISHED); // Uninstalled mid-scan
+							}
+							continue;
+						}
+						stats.incrementCounter(ScanStats.COUNTER_FETCHED);
+						if(!scan.incomplete) {
+							cache.put(pkgInfos.get(appIndex), scan);
+							sinceSave++;
 						}
-						
-						// Found suspicious looking packages in use (independent of match)
-						if(!suspiciousPackages.isEmpty()) {
-							detectionLogBuilder.append(TextUtils.join(", ", suspiciousPackages));							
+					} else {
+						stats.incrementCounter(ScanStats.COUNTER_CACHED);
+					}
+					// Once per app, however many of its components matched, whether it was scanned now or cached
+					for(int i = 0; i < rules.getProviderCount(); i++) {
+						if(scan.hasProvider(i)) {
+							stats.recordProviderHit(i);
 						}
-						
-						detectionLogBuilder.append("]\n");
-					}										
-				} catch (NameNotFoundException e) {
-					Log.e(TAG, "Managed to not find a package we know about");
+					}
+					installed.add(scan.packageName);
+					int appId = sources.suspiciousPrefixes.addApp(scan.packageName);
+					for(String prefix : scan.suspiciousPackages) {
+						sources.suspiciousPrefixes.add(appId, prefix);
+					}
+					if(scan.adSource != null) {
+						sources.adSources.add(scan.adSource);
+						publishProgress(new Progress(appIndex, appCount, scan.adSource));
+					}
+					if(scan.adSource != null || !scan.suspiciousPackages.isEmpty()) {
+						findings.put(scan.packageName, new ScanHistory.AppState(scan, rules));
+					}
+					if(detectionLog != null) {
+						start = System.nanoTime();
+						logEntry.setLength(0);
+						scan.appendLogEntry(logEntry, rules);
+						detectionLog.append(logEntry);
+						stats.recordPhase(ScanStats.PHASE_LOG, System.nanoTime() - start);
+					}
+				}
+			} catch (InterruptedException e) {
+				if(detectionLog != null) {
+					detectionLog.abort();
+				}
+				saveCaches(cache, codeCache);
+				return null;
+			} finally {
+				engine.shutdown();
+			}
+			
+			// PackageScanService may have updated the file since we loaded it. Anything we overwrite here will
+			// just fail its version check next time and be rescanned.
+			start = System.nanoTime();
+			synchronized(ScanCache.FILE_LOCK) {
+				cache.retainAll(pkgInfos);
+				cache.save();
+				// Under both locks, as PackageScanService updates them, so the snapshot never disagrees with the cache
+				synchronized(ScanSnapshot.FILE_LOCK) {
+					new ScanSnapshot(mDeepScan, sources.adSources).save(ScanSnapshot.getFile(mContext));
+				}
+			}
+			if(codeCache != null) {
+				synchronized(CodeScanCache.FILE_LOCK) {
+					codeCache.save();
+				}
+			}
+			stats.recordPhase(ScanStats.PHASE_CACHE, System.nanoTime() - start);
+			if(mRevalidation) {
+				// The detection log and history are left to the user's own scans, see the constructor
+				stats.finish();
+				sources.stats = stats;
+				return sources;
+			}
+			
+			synchronized(ScanHistory.FILE_LOCK) {
+				ScanHistory history = ScanHistory.load(mContext);
+				// Nothing is known about a package whose scan failed, so it keeps its last recorded state
+				for(String packageName : failed) {
+					ScanHistory.AppState state = history.getState(packageName);
+					if(state != null) {
+						findings.put(packageName, state);
+					}
 				}
-	    	}
+				sources.changes = history.record(System.currentTimeMillis(), findings, installed);
+			}
 			
-			sources.detectionLog = detectionLogBuilder.toString();
+			logEntry.setLength(0);
+			if(sources.changes != null) {
+				sources.changes.appendTo(logEntry);
+			}
+			sources.suspiciousPrefixes.appendTo(logEntry);
+			stats.finish();
+			Log.i(TAG, "Scan statistics:\n" + stats);
+			stats.appendTo(logEntry);
+			detectionLog.append(logEntry);
+			sources.stats = stats;
+			sources.detectionLog = detectionLog.commit();
 			return sources;
 		}
 
+		/** Saves the verdicts so far, so an unfinished scan's work isn't lost */
+		private void saveCaches(ScanCache cache, CodeScanCache codeCache) {
+			if(codeCache != null) {
+				synchronized(CodeScanCache.FILE_LOCK) {
+					codeCache.save();
+				}
+			}
+			synchronized(ScanCache.FILE_LOCK) {
+				cache.save();
+			}
+		}
+
 		@Override
-		protected void onProgressUpdate(Integer... progress) {
-			mCallbacks.onProgressUpdate(progress[0], progress[1]);
+		protected void onProgressUpdate(Progress... progress) {
+			for(Progress p : progress) {
+				if(p.adSource != null) {
+					mCallbacks.onAdSourceFound(p.adSource);
+				} else {
+					mCallbacks.onProgressUpdate(p.packagesScanned, p.packagesTotal);
+				}
+			}
 		}
 
 		@Override
@@ -16,10 +16,13 @@
 
 package com.brosmike.airpushdetector;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 import android.app.Activity;
 import android.content.Intent;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
@@ -30,6 +33,7 @@ import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
@@ -51,7 +55,8 @@ public class DetectorFragment
 	implements
 		DetectorTaskFragment.Callbacks,
 		NativeDetectionDialogFragment.Callbacks,
-		OnClickListener {
+		OnClickListener,
+		OnLongClickListener {
 	
 	// ////////////////////////////////////////////////////////////////////////
 	// Lifecycle
@@ -66,10 +71,50 @@ public class DetectorFragment
 		if (taskFragment != null) {
 			taskFragment.setTargetFragment(this, DetectorTaskFragment.TASK_REQUEST_CODE);
 		}
+		Fragment revalidationFragment = fm.findFragmentByTag(DetectorTaskFragment.REVALIDATION_TAG);
+		if (revalidationFragment != null) {
+			revalidationFragment.setTargetFragment(this, DetectorTaskFragment.TASK_REQUEST_CODE);
+		}
 		Fragment dialogFragment = fm.findFragmentByTag(NativeDetectionDialogFragment.TAG);
 		if (dialogFragment != null) {
 			dialogFragment.setTargetFragment(this, NativeDetectionDialogFragment.TASK_REQUEST_CODE);
 		}
+		
+		mAppInfoLoader = new AppInfoLoader(getActivity().getPackageManager());
+	}
+	
+	@Override
+	public void onActivityCreated(Bundle savedInstanceState) {
+		super.onActivityCreated(savedInstanceState);
+		
+		// Show the results we had before being recreated, which may have been in another process
+		if (savedInstanceState != null && mAdapter == null) {
+			ArrayList<AdSource> adSources = savedInstanceState.getParcelableArrayList(AD_SOURCES_STATE);
+			if (adSources != null) {
+				mAdapter = new AdSourceArrayAdapter(getActivity(), adSources);
+				this.setListAdapter(mAdapter);
+			}
+		} else if (savedInstanceState == null) {
+			showSnapshot();
+		}
+	}
+	
+	@Override
+	public void onSaveInstanceState(Bundle outState) {
+		super.onSaveInstanceState(outState);
+		if (mAdapter != null) {
+			ArrayList<AdSource> adSources = new ArrayList<AdSource>(mAdapter.getCount());
+			for (int i = 0; i < mAdapter.getCount(); i++) {
+				adSources.add(mAdapter.getItem(i));
+			}
+			outState.putParcelableArrayList(AD_SOURCES_STATE, adSources);
+		}
+	}
+	
+	@Override
+	public void onDestroy() {
+		mAppInfoLoader.shutdown();
+		super.onDestroy();
 	}
 	
 	@Override
@@ -77,6 +122,7 @@ public class DetectorFragment
 		View fragmentView = inflater.inflate(R.layout.detector_fragment, container, false);
 		Button refreshButton = (Button) fragmentView.findViewById(R.id.refresh_button);
 		refreshButton.setOnClickListener(this);
+		refreshButton.setOnLongClickListener(this);
 		
 		return fragmentView;
 	}
@@ -84,15 +130,18 @@ public class DetectorFragment
 	// ////////////////////////////////////////////////////////////////////////
 	// Control logic
 	// ////////////////////////////////////////////////////////////////////////
+	private static final String AD_SOURCES_STATE = "adSources";
+	
 	AdSourcesInfo mAdSources;
+	AdSourceArrayAdapter mAdapter;
+	AppInfoLoader mAppInfoLoader;
 
 	@Override
 	public void onListItemClick(ListView listView, View view, int position,
 			long id) {
 		// Uninstall the app
-		PackageInfo pkg = mAdSources.adSources.get(position).packageInfo;
 		Intent i = new Intent(Intent.ACTION_DELETE);
-		i.setData(Uri.parse("package:" + pkg.packageName));
+		i.setData(Uri.parse("package:" + mAdapter.getItem(position).packageName));
 		startActivity(i);
 	}
 
@@ -102,6 +151,14 @@ public class DetectorFragment
 		refresh(false);
 	}
 	
+	@Override
+	public boolean onLongClick(View v) {
+		// Long-pressing the scan button also looks inside each app's code. It's much slower, so it's kept out of
+		// the way, and skips the native detection prompt since anyone finding it has presumably already tried that.
+		startDetectionTask(true);
+		return true;
+	}
+	
 	// Callback from DetectorTaskFragment
 	@Override
 	public void onTaskCancelled() {
@@ -109,6 +166,17 @@ public class DetectorFragment
 		populate(null);
 	}
 	
+	// Callback from DetectorTaskFragment
+	@Override
+	public void onAdSourceFound(AdSource adSource) {
+		// Append to the list as results come in, rather than waiting for the whole scan
+		if (mAdapter == null) {
+			mAdapter = new AdSourceArrayAdapter(getActivity(), new ArrayList<AdSource>());
+			this.setListAdapter(mAdapter);
+		}
+		mAdapter.add(adSource);
+	}
+	
 	// Callback from DetectorTaskFragment	
 	@Override
 	public void onTaskFinished(AdSourcesInfo adSources) {
@@ -116,6 +184,22 @@ public class DetectorFragment
 		populate(adSources);
 	}
 	
+	// Callback from DetectorTaskFragment
+	@Override
+	public void onRevalidationFinished(AdSourcesInfo adSources) {
+		if (adSources == null) {
+			return; // Interrupted; keep showing the snapshot
+		}
+		Log.d("DetectorFragment", "Revalidation finished (" + adSources.adSources.size() + " results)");
+		mAdSources = adSources;
+		if (mAdapter == null) {
+			mAdapter = new AdSourceArrayAdapter(getActivity(), new ArrayList<AdSource>(adSources.adSources));
+			this.setListAdapter(mAdapter);
+		} else {
+			updateChangedRows(adSources.adSources);
+		}
+	}
+	
 	// Callback from NativeDetectionDialogFragment
 	@Override
 	public void onSelection(boolean doDetection) {
@@ -131,7 +215,7 @@ public class DetectorFragment
 			// We don't start a detector task here - if the user wants one after being told
 			// about the native path, this will be reinvoked with force=true by onSelection
 		} else {
-			startDetectionTask();			
+			startDetectionTask(false);
 		}		
 	}
 	
@@ -151,8 +235,75 @@ public class DetectorFragment
 		dialog.show(getFragmentManager(), NativeDetectionDialogFragment.TAG);
 	}
 	
-	private void startDetectionTask() {
-		DetectorTaskFragment taskFragment = new DetectorTaskFragment();
+	/**
+	 * Shows the results of the last completed scan straight away on a cold start, then checks them with a background
+	 * scan. That is usually quick, since only apps installed or updated since then aren't in the ScanCache.
+	 */
+	private void showSnapshot() {
+		ScanSnapshot snapshot;
+		synchronized (ScanSnapshot.FILE_LOCK) {
+			snapshot = ScanSnapshot.load(ScanSnapshot.getFile(getActivity()));
+		}
+		if (snapshot == null) {
+			return; // Never scanned; wait for the user to ask
+		}
+		mAdapter = new AdSourceArrayAdapter(getActivity(), snapshot.adSources);
+		this.setListAdapter(mAdapter);
+		
+		FragmentManager fm = getFragmentManager();
+		if (fm.findFragmentByTag(DetectorTaskFragment.TAG) == null && fm.findFragmentByTag(DetectorTaskFragment.REVALIDATION_TAG) == null) {
+			DetectorTaskFragment revalidation = DetectorTaskFragment.newRevalidationInstance(snapshot.deepScan);
+			revalidation.setTargetFragment(this, DetectorTaskFragment.TASK_REQUEST_CODE);
+			fm.beginTransaction().add(revalidation, DetectorTaskFragment.REVALIDATION_TAG).commit();
+		}
+	}
+	
+	/** Applies revalidated results to the list a row at a time, so unchanged rows keep their place and don't flicker */
+	private void updateChangedRows(List<AdSource> adSources) {
+		Map<String, AdSource> fresh = new HashMap<String, AdSource>();
+		for (AdSource adSource : adSources) {
+			fresh.put(adSource.packageName, adSource);
+		}
+		boolean changed = false;
+		mAdapter.setNotifyOnChange(false);
+		for (int i = mAdapter.getCount() - 1; i >= 0; i--) {
+			AdSource shown = mAdapter.getItem(i);
+			AdSource current = fresh.remove(shown.packageName);
+			if (!shown.equals(current)) {
+				// Uninstalled, cleaned up or matched differently
+				mAdapter.remove(shown);
+				if (current != null) {
+					mAdapter.insert(current, i);
+				}
+				changed = true;
+			}
+		}
+		for (AdSource adSource : adSources) {
+			if (fresh.containsKey(adSource.packageName)) {
+				mAdapter.add(adSource);
+				changed = true;
+			}
+		}
+		mAdapter.setNotifyOnChange(true);
+		if (changed) {
+			mAdapter.notifyDataSetChanged();
+		}
+	}
+	
+	private void startDetectionTask(boolean deepScan) {
+		// A full scan supersedes any revalidation still running
+		FragmentManager fm = getFragmentManager();
+		DetectorTaskFragment revalidation = (DetectorTaskFragment) fm.findFragmentByTag(DetectorTaskFragment.REVALIDATION_TAG);
+		if (revalidation != null) {
+			revalidation.cancelRevalidation();
+			fm.beginTransaction().remove(revalidation).commit();
+		}
+		
+		// Results from the new scan will be streamed into a fresh list
+		mAdapter = null;
+		this.setListAdapter(null);
+		
+		DetectorTaskFragment taskFragment = DetectorTaskFragment.newInstance(deepScan);
 		taskFragment.setTargetFragment(this, DetectorTaskFragment.TASK_REQUEST_CODE);
 		taskFragment.show(getFragmentManager(), DetectorTaskFragment.TAG);
 	}
@@ -160,11 +311,16 @@ public class DetectorFragment
 	private void populate(AdSourcesInfo adSources) {
 		if (adSources == null) {
 			mAdSources = new AdSourcesInfo();
+			mAdapter = null;
 			this.setListAdapter(null);
 		} else {
 			mAdSources = adSources;
-			this.setListAdapter(new AdSourceArrayAdapter(getActivity(), adSources.adSources.toArray(new AdSource[0])));
-			if (adSources.adSources.isEmpty()) {
+			// Normally every result has already been streamed in, unless we were recreated mid-scan
+			if (mAdapter == null || mAdapter.getCount() != adSources.adSources.size()) {
+				mAdapter = new AdSourceArrayAdapter(getActivity(), new ArrayList<AdSource>(adSources.adSources));
+				this.setListAdapter(mAdapter);
+			}
+			if (adSources.adSources.isEmpty() && adSources.detectionLog != null) {
 				Intent i = new Intent(getActivity(), ReportActivity.class);
 				i.putExtra(ReportActivity.DETECTION_LOG_EXTRA, adSources.detectionLog);
 				startActivity(i);
@@ -184,14 +340,10 @@ public class DetectorFragment
 		}
 
 		private final LayoutInflater inflater;
-		private final PackageManager pm;
-		private final AdSource[] values;
 
-		public AdSourceArrayAdapter(Activity ctx, AdSource[] values) {
+		public AdSourceArrayAdapter(Activity ctx, List<AdSource> values) {
 			super(ctx, R.layout.list_item, values);
 			this.inflater = ctx.getLayoutInflater();
-			this.pm = ctx.getPackageManager();
-			this.values = values;
 		}
 
 		@Override
@@ -214,15 +366,13 @@ public class DetectorFragment
 				holder = (ViewHolder) convertView.getTag();
 			}
 
-			AdSource src = values[position];
-			PackageInfo pkg = src.packageInfo;
+			AdSource src = getItem(position);
 
-			holder.appName.setText(pm.getApplicationLabel(pkg.applicationInfo)
-					.toString());
+			// Labels and icons are slow to load, so they're filled in asynchronously
+			mAppInfoLoader.bind(src.packageName, holder.appName, holder.appIcon);
 			holder.adProviderName.setText(getResources().getString(
 					R.string.list_item_ad_framework_prefix)
-					+ ": " + src.adProvider.friendlyName);
-			holder.appIcon.setImageDrawable(pkg.applicationInfo.loadIcon(pm));
+					+ ": " + src.providerName);
 
 			return convertView;
 		}
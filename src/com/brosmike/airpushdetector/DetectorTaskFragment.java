@@ -26,6 +26,7 @@ import android.view.ViewGroup;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
+import com.brosmike.airpushdetector.Detector.AdSource;
 import com.brosmike.airpushdetector.Detector.AdSourcesInfo;
 import com.brosmike.airpushdetector.Detector.DetectAsyncTask;
 
@@ -34,21 +35,54 @@ import com.brosmike.airpushdetector.Detector.DetectAsyncTask;
  * 
  * Fragment is expected to be retained on rotation, unlike owning fragment
  * 
- * A DetectAsyncTask starts working as soon as the fragment is created.
+ * A DetectAsyncTask starts working as soon as the fragment is created. Use newInstance to choose a deep scan.
+ * 
+ * Revalidation instances (see newRevalidationInstance) have no dialog and are added under REVALIDATION_TAG. They
+ * only report their final results, through Callbacks.onRevalidationFinished.
  * 
  * Target fragments are required to implement DetectorTaskFragment.Callbacks
  */
 public class DetectorTaskFragment extends DialogFragment implements	DetectAsyncTask.Callbacks {
 	public static final String TAG = "DetectorTaskFragment";
+	public static final String REVALIDATION_TAG = "DetectorTaskFragmentRevalidation";
 	public static final int TASK_REQUEST_CODE = 0;
+	private static final String DEEP_SCAN_ARG = "deep_scan";
+	private static final String REVALIDATION_ARG = "revalidation";
 
 	DetectAsyncTask mTask;
 	ProgressBar mProgressBar;
 	TextView mProgressText;
+	boolean mRevalidation;
 	
 	public static interface Callbacks {
 		public void onTaskFinished(AdSourcesInfo adSources);
 		public void onTaskCancelled();
+		public void onAdSourceFound(AdSource adSource);
+		/** Results of a revalidation scan, in place of every other callback */
+		public void onRevalidationFinished(AdSourcesInfo adSources);
+	}
+
+	public static DetectorTaskFragment newInstance(boolean deepScan) {
+		DetectorTaskFragment fragment = new DetectorTaskFragment();
+		Bundle args = new Bundle();
+		args.putBoolean(DEEP_SCAN_ARG, deepScan);
+		fragment.setArguments(args);
+		return fragment;
+	}
+
+	/** A quiet scan to check results already on screen, e.g. from a ScanSnapshot */
+	public static DetectorTaskFragment newRevalidationInstance(boolean deepScan) {
+		DetectorTaskFragment fragment = newInstance(deepScan);
+		fragment.getArguments().putBoolean(REVALIDATION_ARG, true);
+		return fragment;
+	}
+
+	/** Stops a revalidation without reporting anything, e.g. because a full scan is about to replace it */
+	public void cancelRevalidation() {
+		if (mTask != null) {
+			mTask.cancel(false);
+			mTask = null;
+		}
 	}
 
 	public void setTask(DetectAsyncTask task) {
@@ -62,12 +96,20 @@ public class DetectorTaskFragment extends DialogFragment implements	DetectAsyncT
 		// Stop the dialog from being destroyed on orientation change
 		setRetainInstance(true);
 
-		mTask = new DetectAsyncTask(getActivity().getPackageManager(), this);
+		boolean deepScan = getArguments() != null && getArguments().getBoolean(DEEP_SCAN_ARG);
+		mRevalidation = getArguments() != null && getArguments().getBoolean(REVALIDATION_ARG);
+		if (mRevalidation) {
+			setShowsDialog(false);
+		}
+		mTask = new DetectAsyncTask(getActivity(), this, deepScan, mRevalidation);
 		mTask.execute();
 	}
 
 	@Override
 	public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
+		if (mRevalidation) {
+			return null;
+		}
 		View view = inflater.inflate(R.layout.detector_task_fragment, container);
 		mProgressText = (TextView) view.findViewById(R.id.detector_task_fragment_progress_text);
 		mProgressBar = (ProgressBar) view.findViewById(R.id.detector_task_fragment_progress_bar);
@@ -121,12 +163,30 @@ public class DetectorTaskFragment extends DialogFragment implements	DetectAsyncT
 	// DetectAsyncTask callback
 	@Override
 	public void onProgressUpdate(int packagesScanned, int packagesTotal) {
+		if (mProgressBar == null) {
+			return; // No dialog
+		}
 		CharSequence progressText = String.format(getResources().getString(R.string.progress_dialog_text), packagesScanned, packagesTotal);
 		mProgressText.setText(progressText);
 		mProgressBar.setMax(packagesTotal);
 		mProgressBar.setProgress(packagesScanned);
 	}
 
+	// DetectAsyncTask callback
+	@Override
+	public void onAdSourceFound(AdSource adSource) {
+		// Results are streamed to whichever fragment is currently our target. If it is recreated mid-scan, it will
+		// pick up anything it missed from onTaskFinished.
+		Fragment target = getTargetFragment();
+		if (target != null && !mRevalidation) {
+			if (!(target instanceof Callbacks)) {
+				throw new IllegalStateException("DetectorTaskFragment target must implement its callbacks");
+			}
+			
+			((Callbacks)target).onAdSourceFound(adSource);
+		}
+	}
+
 	// This is also called by the AsyncTask.
 	@Override
 	public void onTaskFinished(AdSourcesInfo results) {
@@ -148,7 +208,11 @@ public class DetectorTaskFragment extends DialogFragment implements	DetectAsyncT
 				throw new IllegalStateException("DetectorTaskFragment target must implement its callbacks");
 			}
 			
-			((Callbacks)target).onTaskFinished(results);
+			if (mRevalidation) {
+				((Callbacks)target).onRevalidationFinished(results);
+			} else {
+				((Callbacks)target).onTaskFinished(results);
+			}
 		}
 	}
 }
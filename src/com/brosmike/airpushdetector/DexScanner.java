@@ -0,0 +1,194 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Lists the class names referenced by a DEX file, by walking its string and type id tables
+ *
+ * Works in a single forward pass over the file, so it can read straight from a deflated APK entry. Only the two id
+ * tables are held in memory (4 bytes per string and 8 per type); the rest of the file is skipped over, apart from the
+ * string data of type descriptors.
+ */
+public class DexScanner {
+	private static final int HEADER_SIZE = 0x70;
+	private static final int STRING_IDS_SIZE_OFFSET = 0x38;
+	// Anything bigger than this is a corrupt file rather than a real app
+	private static final int MAX_IDS = 1 << 22;
+
+	/** Receives class names as they are found */
+	public static interface ClassNameVisitor {
+		/** @return true to stop scanning */
+		public boolean visitClassName(String className);
+	}
+
+	/** @return Whether an APK entry is one of the app's DEX files (classes.dex, classes2.dex, ...) */
+	public static boolean isDexEntry(String entryName) {
+		if (!entryName.startsWith("classes") || !entryName.endsWith(".dex")) {
+			return false;
+		}
+		for (int i = "classes".length(); i < entryName.length() - ".dex".length(); i++) {
+			if (!Character.isDigit(entryName.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Reports the dotted name (e.g. com.example.Foo) of every class type in a DEX file, in string data order
+	 *
+	 * @param dex The DEX file, positioned at its start. It is read sequentially and not closed.
+	 */
+	public static void scan(InputStream dex, ClassNameVisitor visitor) throws IOException {
+		Reader in = new Reader(new BufferedInputStream(dex, 8192));
+		if (in.readUnsignedByte() != 'd' || in.readUnsignedByte() != 'e' || in.readUnsignedByte() != 'x'
+				|| in.readUnsignedByte() != '\n') {
+			throw new IOException("Not a DEX file");
+		}
+
+		in.skipTo(STRING_IDS_SIZE_OFFSET);
+		int stringIdsSize = in.readInt();
+		long stringIdsOff = in.readInt() & 0xFFFFFFFFL;
+		int typeIdsSize = in.readInt();
+		long typeIdsOff = in.readInt() & 0xFFFFFFFFL;
+		if (stringIdsSize < 0 || stringIdsSize > MAX_IDS || typeIdsSize < 0 || typeIdsSize > MAX_IDS
+				|| stringIdsOff < HEADER_SIZE || typeIdsOff < stringIdsOff + 4L * stringIdsSize) {
+			throw new IOException("Unexpected DEX layout");
+		}
+
+		in.skipTo(stringIdsOff);
+		int[] stringOffsets = new int[stringIdsSize];
+		for (int i = 0; i < stringIdsSize; i++) {
+			stringOffsets[i] = in.readInt();
+		}
+
+		in.skipTo(typeIdsOff);
+		long[] descriptorOffsets = new long[typeIdsSize];
+		for (int i = 0; i < typeIdsSize; i++) {
+			int stringIndex = in.readInt();
+			if (stringIndex < 0 || stringIndex >= stringIdsSize) {
+				throw new IOException("Type id refers to missing string " + stringIndex);
+			}
+			descriptorOffsets[i] = stringOffsets[stringIndex] & 0xFFFFFFFFL;
+		}
+		stringOffsets = null;
+
+		// Visit the descriptors in file order, so the stream never has to go backwards
+		Arrays.sort(descriptorOffsets);
+		StringBuilder className = new StringBuilder();
+		for (long offset : descriptorOffsets) {
+			if (offset < in.position()) {
+				continue; // Only happens for non-standard layouts with string data before the type ids
+			}
+			in.skipTo(offset);
+			in.readUleb128(); // UTF-16 length, which we don't need
+			if (readClassName(in, className) && visitor.visitClassName(className.toString())) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Decodes a MUTF-8 type descriptor such as Lcom/example/Foo; or [Lcom/example/Foo; into a dotted class name
+	 *
+	 * @return false if the descriptor isn't for a class (or array of classes)
+	 */
+	private static boolean readClassName(Reader in, StringBuilder className) throws IOException {
+		className.setLength(0);
+		int b = in.readUnsignedByte();
+		while (b == '[') {
+			b = in.readUnsignedByte();
+		}
+		if (b != 'L') {
+			return false;
+		}
+		while (true) {
+			b = in.readUnsignedByte();
+			char c;
+			if (b == 0 || b == ';') {
+				return className.length() > 0;
+			} else if (b < 0x80) {
+				c = (char) b;
+			} else if ((b & 0xE0) == 0xC0) {
+				c = (char) (((b & 0x1F) << 6) | (in.readUnsignedByte() & 0x3F));
+			} else {
+				int b2 = in.readUnsignedByte();
+				c = (char) (((b & 0x0F) << 12) | ((b2 & 0x3F) << 6) | (in.readUnsignedByte() & 0x3F));
+			}
+			className.append(c == '/' ? '.' : c);
+		}
+	}
+
+	/** Little-endian forward-only reader which tracks its position */
+	private static class Reader {
+		private final InputStream mIn;
+		private long mPosition = 0;
+
+		Reader(InputStream in) {
+			mIn = in;
+		}
+
+		long position() {
+			return mPosition;
+		}
+
+		int readUnsignedByte() throws IOException {
+			int b = mIn.read();
+			if (b < 0) {
+				throw new EOFException("Truncated DEX file");
+			}
+			mPosition++;
+			return b;
+		}
+
+		int readInt() throws IOException {
+			return readUnsignedByte() | (readUnsignedByte() << 8) | (readUnsignedByte() << 16) | (readUnsignedByte() << 24);
+		}
+
+		int readUleb128() throws IOException {
+			int result = 0;
+			for (int shift = 0; shift < 35; shift += 7) {
+				int b = readUnsignedByte();
+				result |= (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return result;
+				}
+			}
+			throw new IOException("Malformed uleb128");
+		}
+
+		void skipTo(long offset) throws IOException {
+			if (offset < mPosition) {
+				throw new IOException("Can't seek backwards in a DEX stream");
+			}
+			while (mPosition < offset) {
+				long skipped = mIn.skip(offset - mPosition);
+				if (skipped <= 0) {
+					readUnsignedByte(); // skip() may legitimately return 0, so make progress or hit EOF
+				} else {
+					mPosition += skipped;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,261 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Lists the symbols exported by a native library inside an APK, by reading its ELF dynamic symbol table
+ *
+ * Only the ELF header, the section headers and the .dynsym/.dynstr tables are ever held in memory, and tables over a
+ * fixed size are skipped, so a large library costs a couple of streaming passes rather than its own size in heap.
+ * Stored libraries are skipped through without inflating anything; deflated ones are inflated through ApkArchive's
+ * small buffer and discarded as they go.
+ */
+public class ElfScanner {
+	private static final int ELF_MAGIC = 0x464C457F; // "\177ELF", read little-endian
+	private static final int ELFCLASS64 = 2;
+	private static final int ELFDATA2MSB = 2;
+	private static final int SHT_DYNSYM = 11;
+	private static final int SHN_UNDEF = 0;
+	private static final int STB_GLOBAL = 1;
+	private static final int STB_WEAK = 2;
+	// Generous for real libraries; anything bigger is skipped rather than read
+	private static final int MAX_SECTION_HEADERS_SIZE = 256 * 1024;
+	private static final int MAX_TABLE_SIZE = 2 * 1024 * 1024;
+
+	/** Receives exported symbol names as they are found */
+	public static interface SymbolVisitor {
+		/** @return true to stop scanning */
+		public boolean visitSymbol(String symbol);
+	}
+
+	/** @return Whether an APK entry is a native library, i.e. lib/[abi]/[name].so */
+	public static boolean isNativeLibraryEntry(String entryName) {
+		return entryName.startsWith("lib/") && entryName.endsWith(".so") && entryName.indexOf('/', "lib/".length()) > 0;
+	}
+
+	/**
+	 * Reports every symbol a library defines and exports, in symbol table order
+	 *
+	 * @throws IOException if the entry is not a readable ELF file. Oversized tables are not an error; they are just
+	 *   not scanned.
+	 */
+	public static void scan(ApkArchive apk, ApkArchive.Entry entry, SymbolVisitor visitor) throws IOException {
+		// First pass: the header at the start and the section headers, which are usually at the very end
+		Reader in = new Reader(apk.openEntry(entry));
+		ByteBuffer header;
+		boolean is64;
+		int shentsize;
+		int shnum;
+		ByteBuffer sections;
+		try {
+			header = in.read(0, 64);
+			if (header.getInt(0) != ELF_MAGIC) {
+				throw new IOException(entry.name + " is not an ELF file");
+			}
+			is64 = header.get(4) == ELFCLASS64;
+			header.order(header.get(5) == ELFDATA2MSB ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN);
+			long shoff = is64 ? header.getLong(0x28) : header.getInt(0x20) & 0xFFFFFFFFL;
+			shentsize = header.getShort(is64 ? 0x3A : 0x2E) & 0xFFFF;
+			shnum = header.getShort(is64 ? 0x3C : 0x30) & 0xFFFF;
+			if (shoff == 0 || shnum == 0) {
+				return; // Stripped of section headers, so no symbol table to find
+			}
+			if (shentsize < (is64 ? 64 : 40) || (long) shentsize * shnum > MAX_SECTION_HEADERS_SIZE) {
+				throw new IOException("Unexpected section headers in " + entry.name);
+			}
+			sections = in.read(shoff, shentsize * shnum);
+		} finally {
+			in.close();
+		}
+		sections.order(header.order());
+
+		int dynsym = -1;
+		for (int i = 0; i < shnum; i++) {
+			if (sections.getInt(i * shentsize + 4) == SHT_DYNSYM) {
+				dynsym = i;
+				break;
+			}
+		}
+		if (dynsym < 0) {
+			return;
+		}
+		Section symbols = new Section(sections, dynsym * shentsize, is64);
+		int link = sections.getInt(dynsym * shentsize + (is64 ? 0x28 : 0x18));
+		if (link <= 0 || link >= shnum) {
+			throw new IOException("Symbol table in " + entry.name + " has no string table");
+		}
+		Section strings = new Section(sections, link * shentsize, is64);
+		if (symbols.size > MAX_TABLE_SIZE || strings.size > MAX_TABLE_SIZE || symbols.entrySize < (is64 ? 24 : 16)) {
+			return;
+		}
+
+		// Second pass: both tables, in whichever order they appear in the file
+		in = new Reader(apk.openEntry(entry));
+		ByteBuffer symbolTable, stringTable;
+		try {
+			if (symbols.offset < strings.offset) {
+				symbolTable = in.read(symbols.offset, (int) symbols.size);
+				stringTable = in.read(strings.offset, (int) strings.size);
+			} else {
+				stringTable = in.read(strings.offset, (int) strings.size);
+				symbolTable = in.read(symbols.offset, (int) symbols.size);
+			}
+		} finally {
+			in.close();
+		}
+		symbolTable.order(header.order());
+
+		StringBuilder name = new StringBuilder();
+		int count = (int) (symbols.size / symbols.entrySize);
+		for (int i = 1; i < count; i++) { // Symbol 0 is always the null symbol
+			int pos = (int) (i * symbols.entrySize);
+			int nameOffset = symbolTable.getInt(pos);
+			int info = symbolTable.get(pos + (is64 ? 4 : 12)) & 0xFF;
+			int shndx = symbolTable.getShort(pos + (is64 ? 6 : 14)) & 0xFFFF;
+			int binding = info >> 4;
+			if (shndx == SHN_UNDEF || (binding != STB_GLOBAL && binding != STB_WEAK)) {
+				continue; // Imported or local, so says nothing about what this library is
+			}
+			if (readString(stringTable, nameOffset, name) && visitor.visitSymbol(name.toString())) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Recovers the Java method a JNI function is bound to, e.g. Java_com_example_Foo_1Bar_run becomes
+	 * com.example.Foo_Bar.run
+	 *
+	 * @return The dotted class and method name, or null if the symbol isn't a JNI function
+	 */
+	public static String jniMethodName(String symbol) {
+		if (!symbol.startsWith("Java_")) {
+			return null;
+		}
+		StringBuilder result = new StringBuilder(symbol.length());
+		for (int i = "Java_".length(); i < symbol.length(); i++) {
+			char c = symbol.charAt(i);
+			if (c != '_') {
+				result.append(c);
+				continue;
+			}
+			char escape = i + 1 < symbol.length() ? symbol.charAt(i + 1) : 0;
+			if (escape == '1') {
+				result.append('_');
+			} else if (escape == '2') {
+				result.append(';');
+			} else if (escape == '3') {
+				result.append('[');
+			} else if (escape == '0' && i + 5 < symbol.length()) {
+				try {
+					result.append((char) Integer.parseInt(symbol.substring(i + 2, i + 6), 16));
+				} catch (NumberFormatException e) {
+					return null;
+				}
+				i += 4;
+			} else if (escape == '_') {
+				break; // Start of the mangled argument signature of an overloaded method
+			} else {
+				result.append('.');
+				continue;
+			}
+			i++;
+		}
+		return result.length() > 0 ? result.toString() : null;
+	}
+
+	/** Reads a NUL-terminated string out of a string table, treating it as ASCII since symbols nearly always are */
+	private static boolean readString(ByteBuffer table, int offset, StringBuilder out) {
+		out.setLength(0);
+		if (offset <= 0 || offset >= table.limit()) {
+			return false;
+		}
+		for (int i = offset; i < table.limit(); i++) {
+			byte b = table.get(i);
+			if (b == 0) {
+				return out.length() > 0;
+			}
+			out.append((char) (b & 0xFF));
+		}
+		return false;
+	}
+
+	/** The parts of a section header we need */
+	private static class Section {
+		final long offset;
+		final long size;
+		final long entrySize;
+		Section(ByteBuffer headers, int pos, boolean is64) {
+			if (is64) {
+				offset = headers.getLong(pos + 0x18);
+				size = headers.getLong(pos + 0x20);
+				entrySize = headers.getLong(pos + 0x38);
+			} else {
+				offset = headers.getInt(pos + 0x10) & 0xFFFFFFFFL;
+				size = headers.getInt(pos + 0x14) & 0xFFFFFFFFL;
+				entrySize = headers.getInt(pos + 0x24) & 0xFFFFFFFFL;
+			}
+		}
+	}
+
+	/** Reads bounded regions of a stream, which must be asked for in increasing order of offset */
+	private static class Reader {
+		private final InputStream mIn;
+		private long mPosition = 0;
+
+		Reader(InputStream in) {
+			mIn = in;
+		}
+
+		ByteBuffer read(long offset, int length) throws IOException {
+			if (offset < mPosition || length < 0) {
+				throw new IOException("Overlapping or out of order ELF regions");
+			}
+			while (mPosition < offset) {
+				long skipped = mIn.skip(offset - mPosition);
+				if (skipped <= 0) {
+					if (mIn.read() < 0) {
+						throw new EOFException("Truncated ELF file");
+					}
+					skipped = 1;
+				}
+				mPosition += skipped;
+			}
+			byte[] bytes = new byte[length];
+			int filled = 0;
+			while (filled < length) {
+				int read = mIn.read(bytes, filled, length - filled);
+				if (read < 0) {
+					throw new EOFException("Truncated ELF file");
+				}
+				filled += read;
+			}
+			mPosition += length;
+			return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		void close() throws IOException {
+			mIn.close();
+		}
+	}
+}
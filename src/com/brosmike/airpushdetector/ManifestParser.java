@@ -0,0 +1,366 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Pull parser for the compiled (binary XML) AndroidManifest.xml inside an APK, reading just the component
+ * declarations detectAds looks at, and the package's name, version and requested permissions
+ *
+ * Walks the XML chunks of the buffer in place. Element names are compared against the string pool without decoding
+ * it, and no objects are made per element or attribute; the only allocation per component is its class name, and
+ * only when getComponentName() is called. Names are resolved against the manifest package the way PackageManager
+ * resolves them.
+ *
+ * Usage: while ((type = parser.next()) != ManifestParser.END) { ... parser.getComponentName() ... }
+ * The permissions are only complete once next() has returned END.
+ */
+public class ManifestParser {
+	/** Returned by next() once there are no more components */
+	public static final int END = -1;
+
+	/** Manifests larger than this are assumed to be corrupt rather than read into memory */
+	public static final int MAX_MANIFEST_BYTES = 8 * 1024 * 1024;
+	public static final String MANIFEST_ENTRY = "AndroidManifest.xml";
+
+	private static final int CHUNK_STRING_POOL = 0x0001;
+	private static final int CHUNK_XML = 0x0003;
+	private static final int CHUNK_RESOURCE_MAP = 0x0180;
+	private static final int CHUNK_START_ELEMENT = 0x0102;
+	private static final int FLAG_UTF8 = 1 << 8;
+	private static final int TYPE_STRING = 0x03;
+	private static final int TYPE_FIRST_INT = 0x10;
+	private static final int TYPE_LAST_INT = 0x1f;
+	private static final int ATTR_NAME_ID = 0x01010003; // android:name
+	private static final int ATTR_VERSION_CODE_ID = 0x0101021b; // android:versionCode
+	private static final int NO_RESOURCE_ID = 0;
+	private static final int NO_STRING = -1;
+
+	// Values of mElementKinds for strings which aren't component elements
+	private static final int KIND_UNCHECKED = -3;
+	private static final int KIND_OTHER = -2;
+	private static final int KIND_MANIFEST = -1;
+	private static final int KIND_USES_PERMISSION = -4;
+	private static final String[] COMPONENT_ELEMENTS = { "activity", "activity-alias", "receiver", "service", "provider" };
+	private static final int[] COMPONENT_ELEMENT_TYPES = {
+		ScanStats.COMPONENT_ACTIVITY, ScanStats.COMPONENT_ACTIVITY, ScanStats.COMPONENT_RECEIVER,
+		ScanStats.COMPONENT_SERVICE, ScanStats.COMPONENT_PROVIDER,
+	};
+
+	private final ByteBuffer mBuffer;
+	private final int mEnd;
+	private int mStringOffsets = -1;
+	private int mStringData;
+	private boolean mUtf8;
+	private int[] mElementKinds;
+	private int mResourceMap = -1;
+	private int mResourceCount = 0;
+	private int mLength; // Out parameter of locateString, in bytes for UTF-8 pools and chars for UTF-16 ones
+
+	private int mPosition;
+	private String mPackageName;
+	private int mVersionCode;
+	private int mComponentName = NO_STRING;
+	// Pool indices of the requested permissions, only decoded if they're asked for
+	private int[] mPermissions = new int[8];
+	private int mPermissionCount = 0;
+
+	/** @param manifest A compiled manifest, from its position to its limit */
+	public ManifestParser(ByteBuffer manifest) throws IOException {
+		mBuffer = manifest.slice().order(ByteOrder.LITTLE_ENDIAN);
+		mEnd = mBuffer.limit();
+		if (mEnd < 8 || mBuffer.getShort(0) != CHUNK_XML) {
+			throw new IOException("Not a compiled XML file");
+		}
+		mPosition = mBuffer.getShort(2) & 0xffff;
+	}
+
+	/** Reads the manifest of an APK */
+	public static ManifestParser open(ApkArchive apk) throws IOException {
+		ApkArchive.Entry entry = apk.getEntry(MANIFEST_ENTRY);
+		if (entry == null) {
+			throw new IOException("No " + MANIFEST_ENTRY);
+		}
+		if (entry.size > MAX_MANIFEST_BYTES) {
+			throw new IOException(MANIFEST_ENTRY + " is " + entry.size + " bytes");
+		}
+		byte[] bytes = new byte[(int) entry.size];
+		InputStream in = apk.openEntry(entry);
+		try {
+			int read = 0;
+			while (read < bytes.length) {
+				int n = in.read(bytes, read, bytes.length - read);
+				if (n < 0) {
+					throw new IOException("Truncated " + MANIFEST_ENTRY);
+				}
+				read += n;
+			}
+		} finally {
+			in.close();
+		}
+		return new ManifestParser(ByteBuffer.wrap(bytes));
+	}
+
+	/**
+	 * Advances to the next activity, activity-alias, receiver, service or provider element
+	 *
+	 * @return Its ScanStats.COMPONENT_* type, or END
+	 */
+	public int next() throws IOException {
+		try {
+			return nextComponent();
+		} catch (IndexOutOfBoundsException e) {
+			// An offset inside a chunk pointed outside the file
+			throw new IOException("Corrupt manifest");
+		}
+	}
+
+	private int nextComponent() throws IOException {
+		while (mPosition + 8 <= mEnd) {
+			int start = mPosition;
+			int type = mBuffer.getShort(start) & 0xffff;
+			int headerSize = mBuffer.getShort(start + 2) & 0xffff;
+			int size = mBuffer.getInt(start + 4);
+			if (size < 8 || headerSize > size || size > mEnd - start) {
+				throw new IOException("Bad chunk at " + start);
+			}
+			mPosition = start + size;
+
+			if (type == CHUNK_STRING_POOL && mStringOffsets < 0) {
+				readStringPool(start, headerSize);
+			} else if (type == CHUNK_RESOURCE_MAP) {
+				mResourceMap = start + headerSize;
+				mResourceCount = (size - headerSize) / 4;
+			} else if (type == CHUNK_START_ELEMENT) {
+				int kind = elementKind(mBuffer.getInt(start + headerSize + 4));
+				if (kind == KIND_MANIFEST) {
+					int pkg = attributeString(findAttribute(start + headerSize, NO_RESOURCE_ID, "package"));
+					mPackageName = pkg == NO_STRING ? null : getString(pkg);
+					mVersionCode = attributeInt(findAttribute(start + headerSize, ATTR_VERSION_CODE_ID, "versionCode"));
+				} else if (kind == KIND_USES_PERMISSION) {
+					int permission = attributeString(findAttribute(start + headerSize, ATTR_NAME_ID, "name"));
+					if (permission != NO_STRING) {
+						if (mPermissionCount == mPermissions.length) {
+							int[] grown = new int[mPermissionCount * 2];
+							System.arraycopy(mPermissions, 0, grown, 0, mPermissionCount);
+							mPermissions = grown;
+						}
+						mPermissions[mPermissionCount++] = permission;
+					}
+				} else if (kind >= 0) {
+					mComponentName = attributeString(findAttribute(start + headerSize, ATTR_NAME_ID, "name"));
+					if (mComponentName != NO_STRING) {
+						return kind;
+					}
+				}
+			}
+		}
+		return END;
+	}
+
+	/** @return The manifest's package attribute, once next() has passed the manifest element */
+	public String getPackageName() {
+		return mPackageName;
+	}
+
+	/** @return The manifest's android:versionCode, or 0 if it has none, once next() has passed the manifest element */
+	public int getVersionCode() {
+		return mVersionCode;
+	}
+
+	/**
+	 * @return The names of the permissions requested with uses-permission elements so far, or null if there are none,
+	 *     as in PackageInfo.requestedPermissions
+	 */
+	public String[] getRequestedPermissions() throws IOException {
+		if (mPermissionCount == 0) {
+			return null;
+		}
+		String[] permissions = new String[mPermissionCount];
+		for (int i = 0; i < mPermissionCount; i++) {
+			permissions[i] = getString(mPermissions[i]);
+		}
+		return permissions;
+	}
+
+	/** @return The fully qualified class name of the current component */
+	public String getComponentName() throws IOException {
+		String name = getString(mComponentName);
+		if (mPackageName != null && name.length() > 0) {
+			if (name.charAt(0) == '.') {
+				return mPackageName + name;
+			}
+			if (name.indexOf('.') < 0) {
+				return mPackageName + '.' + name;
+			}
+		}
+		return name;
+	}
+
+	private void readStringPool(int start, int headerSize) throws IOException {
+		if (headerSize < 28) {
+			throw new IOException("Bad string pool header");
+		}
+		int count = mBuffer.getInt(start + 8);
+		int flags = mBuffer.getInt(start + 16);
+		int stringsStart = mBuffer.getInt(start + 20);
+		int chunkSize = mBuffer.getInt(start + 4);
+		if (count < 0 || count > (chunkSize - headerSize) / 4 || stringsStart > chunkSize) {
+			throw new IOException("Bad string pool");
+		}
+		mStringOffsets = start + headerSize;
+		mStringData = start + stringsStart;
+		mUtf8 = (flags & FLAG_UTF8) != 0;
+		mElementKinds = new int[count];
+		for (int i = 0; i < count; i++) {
+			mElementKinds[i] = KIND_UNCHECKED;
+		}
+	}
+
+	/** @return KIND_MANIFEST, a component type, or KIND_OTHER for the element named by a pool index */
+	private int elementKind(int nameIndex) throws IOException {
+		if (nameIndex < 0 || mElementKinds == null || nameIndex >= mElementKinds.length) {
+			return KIND_OTHER;
+		}
+		if (mElementKinds[nameIndex] == KIND_UNCHECKED) {
+			int kind = stringEquals(nameIndex, "manifest") ? KIND_MANIFEST
+					: stringEquals(nameIndex, "uses-permission") ? KIND_USES_PERMISSION : KIND_OTHER;
+			for (int i = 0; i < COMPONENT_ELEMENTS.length && kind == KIND_OTHER; i++) {
+				if (stringEquals(nameIndex, COMPONENT_ELEMENTS[i])) {
+					kind = COMPONENT_ELEMENT_TYPES[i];
+				}
+			}
+			mElementKinds[nameIndex] = kind;
+		}
+		return mElementKinds[nameIndex];
+	}
+
+	/**
+	 * Attributes with a resource id (android:name...) are identified by it where there's a resource map, since
+	 * obfuscated manifests may rename or blank their strings
+	 *
+	 * @param resourceId The attribute's id, or NO_RESOURCE_ID to match on name alone
+	 * @return The offset of the attribute, or -1 if the element doesn't have it
+	 */
+	private int findAttribute(int attrExt, int resourceId, String name) throws IOException {
+		int count = mBuffer.getShort(attrExt + 12) & 0xffff;
+		int attr = attrExt + (mBuffer.getShort(attrExt + 8) & 0xffff);
+		int attrSize = mBuffer.getShort(attrExt + 10) & 0xffff;
+		for (int i = 0; i < count; i++, attr += attrSize) {
+			int nameIndex = mBuffer.getInt(attr + 4);
+			boolean found;
+			if (resourceId != NO_RESOURCE_ID && nameIndex >= 0 && nameIndex < mResourceCount) {
+				found = mBuffer.getInt(mResourceMap + nameIndex * 4) == resourceId;
+			} else {
+				found = stringEquals(nameIndex, name);
+			}
+			if (found) {
+				return attr;
+			}
+		}
+		return -1;
+	}
+
+	/** @return An attribute's integer value, or 0 if it's something else or missing (attr is -1) */
+	private int attributeInt(int attr) {
+		if (attr < 0) {
+			return 0;
+		}
+		int type = mBuffer.get(attr + 15) & 0xff;
+		return type >= TYPE_FIRST_INT && type <= TYPE_LAST_INT ? mBuffer.getInt(attr + 16) : 0;
+	}
+
+	/** @return The pool index of an attribute's string value, or NO_STRING if it's something else or missing */
+	private int attributeString(int attr) {
+		if (attr < 0) {
+			return NO_STRING;
+		}
+		int raw = mBuffer.getInt(attr + 8);
+		if (raw != NO_STRING) {
+			return raw;
+		}
+		return mBuffer.get(attr + 15) == TYPE_STRING ? mBuffer.getInt(attr + 16) : NO_STRING;
+	}
+
+	/** @return Where a string's characters start, after its length prefix(es), with its length in mLength */
+	private int locateString(int index) throws IOException {
+		if (mElementKinds == null || index < 0 || index >= mElementKinds.length) {
+			throw new IOException("Bad string index " + index);
+		}
+		int at = mStringData + mBuffer.getInt(mStringOffsets + index * 4);
+		if (at < mStringData || at >= mEnd) {
+			throw new IOException("Bad string offset for " + index);
+		}
+		if (mUtf8) {
+			at += (mBuffer.get(at) & 0x80) != 0 ? 2 : 1; // UTF-16 length, unused
+			int length = mBuffer.get(at++) & 0xff;
+			if ((length & 0x80) != 0) {
+				length = ((length & 0x7f) << 8) | (mBuffer.get(at++) & 0xff);
+			}
+			mLength = length;
+		} else {
+			int length = mBuffer.getShort(at) & 0xffff;
+			at += 2;
+			if ((length & 0x8000) != 0) {
+				length = ((length & 0x7fff) << 16) | (mBuffer.getShort(at) & 0xffff);
+				at += 2;
+			}
+			mLength = length;
+		}
+		if ((long) at + (mUtf8 ? mLength : 2L * mLength) > mEnd) {
+			throw new IOException("Truncated string " + index);
+		}
+		return at;
+	}
+	/** Compares a pool string with an ASCII one without decoding it */
+	private boolean stringEquals(int index, String s) throws IOException {
+		if (mElementKinds == null || index < 0 || index >= mElementKinds.length) {
+			return false;
+		}
+		int at = locateString(index);
+		if (mLength != s.length()) {
+			return false;
+		}
+		for (int i = 0; i < mLength; i++) {
+			int c = mUtf8 ? mBuffer.get(at + i) & 0xff : mBuffer.getChar(at + i * 2);
+			if (c != s.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private String getString(int index) throws IOException {
+		int at = locateString(index);
+		if (!mUtf8) {
+			char[] chars = new char[mLength];
+			for (int i = 0; i < chars.length; i++) {
+				chars[i] = mBuffer.getChar(at + i * 2);
+			}
+			return new String(chars);
+		}
+		byte[] bytes = new byte[mLength];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = mBuffer.get(at + i);
+		}
+		return new String(bytes, "UTF-8");
+	}
+}
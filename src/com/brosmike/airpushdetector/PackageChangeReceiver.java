@@ -0,0 +1,57 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.net.Uri;
+
+/**
+ * Listens for packages being installed, updated or removed and hands them to PackageScanService, so that the scan
+ * cache stays current between full scans
+ *
+ * Nothing is done until the user has run at least one scan, since until then there is no cache to keep current.
+ */
+public class PackageChangeReceiver extends BroadcastReceiver {
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		Uri data = intent.getData();
+		if (data == null || !ScanCache.getFile(context).exists()) {
+			return;
+		}
+
+		// An update sends REMOVED and ADDED with EXTRA_REPLACING, followed by REPLACED. Only act on the last.
+		String action = intent.getAction();
+		boolean replacing = intent.getBooleanExtra(Intent.EXTRA_REPLACING, false);
+		boolean removed;
+		if (Intent.ACTION_PACKAGE_REPLACED.equals(action)) {
+			removed = false;
+		} else if (Intent.ACTION_PACKAGE_ADDED.equals(action) && !replacing) {
+			removed = false;
+		} else if (Intent.ACTION_PACKAGE_REMOVED.equals(action) && !replacing) {
+			removed = true;
+		} else {
+			return;
+		}
+
+		Intent scanIntent = new Intent(context, PackageScanService.class);
+		scanIntent.putExtra(PackageScanService.PACKAGE_NAME_EXTRA, data.getSchemeSpecificPart());
+		scanIntent.putExtra(PackageScanService.REMOVED_EXTRA, removed);
+		context.startService(scanIntent);
+	}
+}
@@ -0,0 +1,293 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.content.pm.ActivityInfo;
+import android.content.pm.ComponentInfo;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.pm.ServiceInfo;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * Fetches packages along with the components Detector.scanPackage inspects, in as few binder transactions as the
+ * platform allows
+ *
+ * PackageManager can only return components for one package or for all of them, so when many packages need
+ * scanning, prefetch() asks for everything at once and fetch() then serves packages from memory. A single reply
+ * holding every component of every app can exceed the binder buffer on devices with many apps, so if the bulk
+ * call fails because the reply was too large it is retried with one component type per call, and if that fails too,
+ * packages are fetched one at a time. The level that worked is remembered for the rest of the process. Any other
+ * failure, such as the package manager restarting, only gives up on bulk fetching for the current scan.
+ *
+ * Packages which aren't prefetched are read from their installed APK's manifest with ManifestParser where possible,
+ * which needs no IPC at all, and only fetched from PackageManager if that fails.
+ *
+ * fetch() is safe to call from any thread once prefetch() has returned.
+ */
+public class PackageFetcher {
+	private static final String TAG = "AirPushDetectorPackageFetcher";
+
+	/** Flags for the components the first stage of scanPackage inspects */
+	public static final int COMPONENT_FLAGS = PackageManager.GET_ACTIVITIES | PackageManager.GET_RECEIVERS | PackageManager.GET_SERVICES;
+	/** COMPONENT_FLAGS plus the requested permissions the first stage decides on, for fetching a single package */
+	private static final int PACKAGE_FLAGS = COMPONENT_FLAGS | PackageManager.GET_PERMISSIONS;
+	/** Flags for the extended stage of scanPackage, only fetched for packages it runs on */
+	public static final int EXTENDED_FLAGS = PackageManager.GET_PROVIDERS | PackageManager.GET_META_DATA;
+
+	/** Below this many packages, individual fetches are cheaper than pulling every app's components */
+	private static final int BULK_MIN_PACKAGES = 16;
+
+	private static final int LEVEL_ALL_COMPONENTS = 0;
+	private static final int LEVEL_PER_COMPONENT_TYPE = 1;
+	private static final int LEVEL_PER_PACKAGE = 2;
+	private static volatile int sBulkLevel = LEVEL_ALL_COMPONENTS;
+
+	private final PackageManager mPackageManager;
+	private final ScanStats mStats;
+	private final Map<String, PackageInfo> mPrefetched = new ConcurrentHashMap<String, PackageInfo>();
+	private final Map<String, PackageInfo> mInstalled = new ConcurrentHashMap<String, PackageInfo>();
+
+	public PackageFetcher(PackageManager packageManager, ScanStats stats) {
+		mPackageManager = packageManager;
+		mStats = stats;
+	}
+
+	/**
+	 * @param installed Packages as enumerated without components, whose APKs fetch() may read instead of asking
+	 *     PackageManager. fetch() fills in their components.
+	 */
+	public PackageFetcher(PackageManager packageManager, ScanStats stats, Collection<PackageInfo> installed) {
+		this(packageManager, stats);
+		for (PackageInfo pkgInfo : installed) {
+			mInstalled.put(pkgInfo.packageName, pkgInfo);
+		}
+	}
+
+	/**
+	 * Fetches the given packages in bulk if there are enough of them (relative to installedCount) to be worth it.
+	 * Packages missing from the bulk reply, or not fetched in bulk at all, are left to fetch().
+	 */
+	public void prefetch(Collection<String> packageNames, int installedCount) {
+		if (packageNames.size() < Math.max(BULK_MIN_PACKAGES, installedCount / 4)) {
+			return;
+		}
+		long start = System.nanoTime();
+		Set<String> wanted = new HashSet<String>(packageNames);
+		while (sBulkLevel != LEVEL_PER_PACKAGE) {
+			int level = sBulkLevel;
+			try {
+				if (level == LEVEL_ALL_COMPONENTS) {
+					keep(mPackageManager.getInstalledPackages(COMPONENT_FLAGS), wanted);
+				} else {
+					keep(fetchPerComponentType(), wanted);
+				}
+				addPermissions();
+				break;
+			} catch (RuntimeException e) {
+				mPrefetched.clear();
+				if (!isTooLarge(e)) {
+					Log.w(TAG, "Bulk package fetch failed at level " + level + ", fetching individually this time", e);
+					break;
+				}
+				Log.w(TAG, "Bulk package fetch too large at level " + level + ", falling back", e);
+				sBulkLevel = level + 1;
+			}
+		}
+		mStats.recordPhase(ScanStats.PHASE_BULK_FETCH, System.nanoTime() - start);
+		Log.d(TAG, "Prefetched " + mPrefetched.size() + " of " + packageNames.size() + " packages");
+	}
+
+	/**
+	 * @return A package with its components, from the prefetched set if it's there
+	 * @throws NameNotFoundException if the package has been uninstalled
+	 */
+	public PackageInfo fetch(String packageName) throws NameNotFoundException {
+		PackageInfo pkgInfo = mPrefetched.remove(packageName);
+		if (pkgInfo != null) {
+			mStats.incrementCounter(ScanStats.COUNTER_PREFETCHED);
+			return pkgInfo;
+		}
+		PackageInfo installed = mInstalled.remove(packageName);
+		if (installed != null) {
+			pkgInfo = readManifest(installed);
+			if (pkgInfo != null) {
+				mStats.incrementCounter(ScanStats.COUNTER_FROM_MANIFEST);
+				return pkgInfo;
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			return mPackageManager.getPackageInfo(packageName, PACKAGE_FLAGS);
+		} finally {
+			mStats.recordPhase(ScanStats.PHASE_FETCH, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return A package with its providers and application meta-data
+	 * @throws NameNotFoundException if the package has been uninstalled
+	 */
+	public PackageInfo fetchExtended(String packageName) throws NameNotFoundException {
+		return mPackageManager.getPackageInfo(packageName, EXTENDED_FLAGS);
+	}
+
+	/**
+	 * Three smaller bulk calls, merged into the PackageInfos of the first. Packages which weren't in every reply
+	 * were installed or removed in between, so they're left for fetch() to look up individually.
+	 */
+	private Collection<PackageInfo> fetchPerComponentType() {
+		Map<String, PackageInfo> merged = new HashMap<String, PackageInfo>();
+		for (PackageInfo pkgInfo : mPackageManager.getInstalledPackages(PackageManager.GET_ACTIVITIES)) {
+			merged.put(pkgInfo.packageName, pkgInfo);
+		}
+		for (int flag : new int[] { PackageManager.GET_RECEIVERS, PackageManager.GET_SERVICES }) {
+			Set<String> seen = new HashSet<String>();
+			for (PackageInfo pkgInfo : mPackageManager.getInstalledPackages(flag)) {
+				PackageInfo target = merged.get(pkgInfo.packageName);
+				if (target == null) {
+					continue;
+				}
+				if (flag == PackageManager.GET_RECEIVERS) {
+					target.receivers = pkgInfo.receivers;
+				} else {
+					target.services = pkgInfo.services;
+				}
+				seen.add(pkgInfo.packageName);
+			}
+			merged.keySet().retainAll(seen);
+		}
+		return merged.values();
+	}
+
+	/**
+	 * Fills in the requested permissions of the prefetched packages from a bulk call of its own. Permissions are small
+	 * next to components, so this keeps them out of the largest reply rather than adding to it. Packages missing
+	 * from this reply were installed or removed in between, so they're left for fetch() to look up individually.
+	 */
+	private void addPermissions() {
+		Set<String> seen = new HashSet<String>();
+		for (PackageInfo pkgInfo : mPackageManager.getInstalledPackages(PackageManager.GET_PERMISSIONS)) {
+			PackageInfo target = mPrefetched.get(pkgInfo.packageName);
+			if (target != null) {
+				target.requestedPermissions = pkgInfo.requestedPermissions;
+				seen.add(pkgInfo.packageName);
+			}
+		}
+		mPrefetched.keySet().retainAll(seen);
+	}
+
+	/**
+	 * Reads installed's activities, receivers, services and requested permissions from its APK. They go into a copy
+	 * rather than installed itself, which the caller's inventory may hold on to for the rest of the scan.
+	 *
+	 * @return The package with its components, or null if the APK couldn't be read or doesn't match installed,
+	 *     e.g. because the app was just updated
+	 */
+	private PackageInfo readManifest(PackageInfo installed) {
+		if (installed.applicationInfo == null || installed.applicationInfo.sourceDir == null) {
+			return null;
+		}
+		PackageInfo pkgInfo = new PackageInfo();
+		pkgInfo.packageName = installed.packageName;
+		pkgInfo.versionCode = installed.versionCode;
+		pkgInfo.versionName = installed.versionName;
+		pkgInfo.applicationInfo = installed.applicationInfo;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+			pkgInfo.firstInstallTime = installed.firstInstallTime;
+			pkgInfo.lastUpdateTime = installed.lastUpdateTime;
+		}
+		long start = System.nanoTime();
+		List<ActivityInfo> activities = new ArrayList<ActivityInfo>();
+		List<ActivityInfo> receivers = new ArrayList<ActivityInfo>();
+		List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+		ApkArchive apk = null;
+		try {
+			apk = new ApkArchive(new File(pkgInfo.applicationInfo.sourceDir));
+			ManifestParser manifest = ManifestParser.open(apk);
+			int type;
+			while ((type = manifest.next()) != ManifestParser.END) {
+				// Providers aren't scanned
+				if (type == ScanStats.COMPONENT_ACTIVITY) {
+					activities.add(describe(new ActivityInfo(), manifest.getComponentName(), pkgInfo));
+				} else if (type == ScanStats.COMPONENT_RECEIVER) {
+					receivers.add(describe(new ActivityInfo(), manifest.getComponentName(), pkgInfo));
+				} else if (type == ScanStats.COMPONENT_SERVICE) {
+					services.add(describe(new ServiceInfo(), manifest.getComponentName(), pkgInfo));
+				}
+			}
+			if (!pkgInfo.packageName.equals(manifest.getPackageName()) || pkgInfo.versionCode != manifest.getVersionCode()) {
+				return null;
+			}
+			pkgInfo.requestedPermissions = manifest.getRequestedPermissions();
+		} catch (IOException e) {
+			Log.d(TAG, "Could not read manifest of " + pkgInfo.packageName, e);
+			return null;
+		} finally {
+			if (apk != null) {
+				try { apk.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+			mStats.recordPhase(ScanStats.PHASE_MANIFEST, System.nanoTime() - start);
+		}
+		pkgInfo.activities = activities.toArray(new ActivityInfo[activities.size()]);
+		pkgInfo.receivers = receivers.toArray(new ActivityInfo[receivers.size()]);
+		pkgInfo.services = services.toArray(new ServiceInfo[services.size()]);
+		return pkgInfo;
+	}
+
+	private static <T extends ComponentInfo> T describe(T component, String name, PackageInfo pkgInfo) {
+		component.name = name;
+		component.packageName = pkgInfo.packageName;
+		component.applicationInfo = pkgInfo.applicationInfo;
+		return component;
+	}
+
+	/**
+	 * Whether a bulk fetch failed because its reply overflowed the binder buffer. TransactionTooLargeException
+	 * reaches us wrapped in a RuntimeException, and only exists from API 15, so it's matched by name.
+	 */
+	private static boolean isTooLarge(Throwable e) {
+		for (; e != null; e = e.getCause()) {
+			if ("android.os.TransactionTooLargeException".equals(e.getClass().getName())
+					|| String.valueOf(e.getMessage()).contains("TransactionTooLargeException")) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void keep(Collection<PackageInfo> pkgInfos, Set<String> wanted) {
+		for (PackageInfo pkgInfo : pkgInfos) {
+			if (wanted.contains(pkgInfo.packageName)) {
+				mPrefetched.put(pkgInfo.packageName, pkgInfo);
+			}
+		}
+	}
+}
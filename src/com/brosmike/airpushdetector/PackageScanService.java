@@ -0,0 +1,100 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.File;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+import com.brosmike.airpushdetector.Detector.PackageScan;
+import com.brosmike.airpushdetector.Detector.ScanContext;
+
+/**
+ * Rescans (or forgets) a single package in the background and records the result in the scan cache, so that the
+ * next full scan finds it already up to date, and in the ScanSnapshot shown when the app next starts
+ */
+public class PackageScanService extends IntentService {
+	private static final String TAG = "AirPushDetectorPackageScanService";
+
+	public static final String PACKAGE_NAME_EXTRA = "com.brosmike.airpushdetector.package_name_extra";
+	public static final String REMOVED_EXTRA = "com.brosmike.airpushdetector.removed_extra";
+
+	public PackageScanService() {
+		super("PackageScanService");
+	}
+
+	@Override
+	protected void onHandleIntent(Intent intent) {
+		String packageName = intent.getStringExtra(PACKAGE_NAME_EXTRA);
+		if (packageName == null) {
+			return;
+		}
+
+		RuleDatabase.ensureLoaded(this);
+		RuleMatcher rules = Detector.getRules();
+		PackageInfo pkgInfo = null;
+		PackageScan scan = null;
+		if (intent.getBooleanExtra(REMOVED_EXTRA, false)) {
+			Log.d(TAG, "Forgetting removed package " + packageName);
+		} else {
+			try {
+				// Never a deep scan; a deep scan from the UI will rescan this package if it needs to
+				ScanContext context = new ScanContext(rules, false);
+				PackageFetcher fetcher = new PackageFetcher(getPackageManager(), context.stats);
+				pkgInfo = fetcher.fetch(packageName);
+				scan = Detector.scanPackage(pkgInfo, fetcher, context);
+			} catch (NameNotFoundException e) {
+				// Removed again before we got to it
+			}
+		}
+
+		// The snapshot is updated in the same transaction as the cache, so the next start shows what the cache says.
+		// The scan itself stays outside the locks, since the UI thread reads the snapshot.
+		synchronized (ScanCache.FILE_LOCK) {
+			synchronized (ScanSnapshot.FILE_LOCK) {
+				ScanCache cache = ScanCache.load(ScanCache.getFile(this), rules);
+				File snapshotFile = ScanSnapshot.getFile(this);
+				ScanSnapshot snapshot = ScanSnapshot.load(snapshotFile);
+				boolean snapshotChanged = false;
+				if (scan == null) {
+					cache.remove(packageName);
+					snapshotChanged = snapshot != null && snapshot.remove(packageName);
+				} else {
+					if (!scan.incomplete) {
+						cache.put(pkgInfo, scan);
+					}
+					if (snapshot != null && scan.adSource != null) {
+						snapshot.put(scan.adSource);
+						snapshotChanged = true;
+					} else if (snapshot != null && !scan.incomplete && !snapshot.deepScan) {
+						// Finding nothing only clears the package from a snapshot made by an equally thorough scan.
+						// A deep snapshot keeps its entry until the UI revalidates it with a deep scan.
+						snapshotChanged = snapshot.remove(packageName);
+					}
+				}
+				cache.save();
+				if (snapshotChanged) {
+					snapshot.save(snapshotFile);
+				}
+			}
+		}
+	}
+}
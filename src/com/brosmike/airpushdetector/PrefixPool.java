@@ -0,0 +1,138 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Interns package prefixes, and collects the distinct prefixes of suspicious components in the package being scanned
+ *
+ * Looking up a prefix which has been seen before compares it in place against the pooled copy, so once the pool has
+ * warmed up, classifying a component allocates nothing. Each thread has its own pool, so no locking is needed.
+ */
+public class PrefixPool {
+	private static final int INITIAL_CAPACITY = 256;
+	// The pool is emptied when it reaches this size, so a long-lived thread can't accumulate prefixes forever
+	private static final int MAX_SIZE = 8192;
+
+	private static final ThreadLocal<PrefixPool> sPools = new ThreadLocal<PrefixPool>() {
+		@Override
+		protected PrefixPool initialValue() {
+			return new PrefixPool();
+		}
+	};
+
+	private String[] mTable = new String[INITIAL_CAPACITY];
+	private int mSize = 0;
+	private String[] mCollected = new String[16];
+	private int mCollectedCount = 0;
+
+	/** @return The calling thread's pool */
+	public static PrefixPool get() {
+		return sPools.get();
+	}
+
+	/** @return The pooled copy of the first length characters of name */
+	public String intern(String name, int length) {
+		int mask = mTable.length - 1;
+		for (int i = hash(name, length) & mask; ; i = (i + 1) & mask) {
+			String pooled = mTable[i];
+			if (pooled == null) {
+				break;
+			}
+			if (pooled.length() == length && name.regionMatches(0, pooled, 0, length)) {
+				return pooled;
+			}
+		}
+
+		String prefix = length == name.length() ? name : name.substring(0, length);
+		if (mSize >= MAX_SIZE) {
+			mTable = new String[INITIAL_CAPACITY];
+			mSize = 0;
+		} else if ((mSize + 1) * 2 > mTable.length) {
+			resize(mTable.length * 2);
+		}
+		insert(prefix);
+		return prefix;
+	}
+
+	/** Adds an interned prefix to those collected for the current package, unless it's already there */
+	public void collect(String prefix) {
+		for (int i = 0; i < mCollectedCount; i++) {
+			if (mCollected[i] == prefix) {
+				return;
+			}
+		}
+		if (mCollectedCount == mCollected.length) {
+			String[] grown = new String[mCollected.length * 2];
+			System.arraycopy(mCollected, 0, grown, 0, mCollectedCount);
+			mCollected = grown;
+		}
+		mCollected[mCollectedCount++] = prefix;
+	}
+
+	/** @return Whether anything has been collected since the last takeCollected() */
+	public boolean hasCollected() {
+		return mCollectedCount > 0;
+	}
+
+	/** @return Every prefix collected since the last call, ready for the next package. Empty sets are shared. */
+	public Set<String> takeCollected() {
+		if (mCollectedCount == 0) {
+			return Collections.emptySet();
+		}
+		Set<String> collected = new HashSet<String>(mCollectedCount * 2);
+		for (int i = 0; i < mCollectedCount; i++) {
+			collected.add(mCollected[i]);
+			mCollected[i] = null;
+		}
+		mCollectedCount = 0;
+		return collected;
+	}
+
+	private void resize(int capacity) {
+		String[] old = mTable;
+		mTable = new String[capacity];
+		mSize = 0;
+		for (String prefix : old) {
+			if (prefix != null) {
+				insert(prefix);
+			}
+		}
+	}
+
+	private void insert(String prefix) {
+		int mask = mTable.length - 1;
+		int i = hash(prefix, prefix.length()) & mask;
+		while (mTable[i] != null) {
+			i = (i + 1) & mask;
+		}
+		mTable[i] = prefix;
+		mSize++;
+	}
+
+	/** String.hashCode of the first length characters, with the high bits folded in for the power-of-two table */
+	private static int hash(String s, int length) {
+		int h = 0;
+		for (int i = 0; i < length; i++) {
+			h = 31 * h + s.charAt(i);
+		}
+		return h ^ (h >>> 16);
+	}
+}
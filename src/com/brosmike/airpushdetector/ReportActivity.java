@@ -16,8 +16,15 @@
 
 package com.brosmike.airpushdetector;
 
+import java.util.List;
+
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -32,7 +39,8 @@ public class ReportActivity extends Activity {
 	
 	public static final String DETECTION_LOG_EXTRA = "com.brosmike.airpushdetector.detection_log_extra";
 
-	private String mDetectionLog;
+	/** DetectionLog.getUri() of the log to attach */
+	private Uri mDetectionLog;
 
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -40,29 +48,40 @@ public class ReportActivity extends Activity {
         setContentView(R.layout.report_activity);
 
         if (savedInstanceState != null) {
-        	mDetectionLog = savedInstanceState.getString(DETECTION_LOG_EXTRA);
+        	mDetectionLog = savedInstanceState.getParcelable(DETECTION_LOG_EXTRA);
         }
         if (mDetectionLog == null && getIntent() != null && getIntent().getExtras() != null){
-            mDetectionLog = getIntent().getExtras().getString(DETECTION_LOG_EXTRA);
+            mDetectionLog = getIntent().getExtras().getParcelable(DETECTION_LOG_EXTRA);
         }
         if (mDetectionLog == null) {
         	Log.e(TAG, "Cannot create ReportActivity without a detection log");
         	finish();
+        	return;
         }
 
-        Log.i(TAG, "Detection log report would be " + mDetectionLog.length() + " characters");
+        Log.i(TAG, "Detection log report would be " + DetectionLog.getFile(this).length() + " bytes compressed");
     }
 
     public void onReportButtonClick(View button) {
     	Intent emailIntent = new Intent(Intent.ACTION_SEND);
-    	emailIntent.setType("plain/text");
+    	emailIntent.setType(DetectionLog.MIME_TYPE);
 
     	emailIntent.putExtra(Intent.EXTRA_EMAIL, new String[] { REPORT_EMAIL });
     	emailIntent.putExtra(Intent.EXTRA_SUBJECT, getResources().getString(R.string.report_email_subject));
-    	emailIntent.putExtra(Intent.EXTRA_TEXT,
-    			getResources().getString(R.string.report_email_body_prefix) +
-    			"\n\n\n" +
-    			mDetectionLog);
+    	emailIntent.putExtra(Intent.EXTRA_TEXT, getResources().getString(R.string.report_email_body_prefix));
+    	// The log is attached by reference, so its size doesn't matter to the binder
+    	emailIntent.putExtra(Intent.EXTRA_STREAM, mDetectionLog);
+    	emailIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+    	if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+    		// The grant only carries through the chooser for URIs in the ClipData
+    		JellyBean.setClipData(emailIntent, mDetectionLog);
+    	} else {
+    		// Before then it doesn't carry through at all, so grant it to every app which might be chosen
+    		List<ResolveInfo> targets = getPackageManager().queryIntentActivities(emailIntent, PackageManager.MATCH_DEFAULT_ONLY);
+    		for (ResolveInfo target : targets) {
+    			grantUriPermission(target.activityInfo.packageName, mDetectionLog, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+    		}
+    	}
 
     	startActivity(Intent.createChooser(emailIntent, getResources().getString(R.string.send_email_with)));
     	
@@ -72,4 +91,11 @@ public class ReportActivity extends Activity {
     public void onNoReportButtonClick(View button) {
     	this.finish();
     }
+
+    /** Kept separate so older versions never load a class referring to ClipData */
+    private static class JellyBean {
+    	static void setClipData(Intent intent, Uri uri) {
+    		intent.setClipData(ClipData.newRawUri(null, uri));
+    	}
+    }
 }
\ No newline at end of file
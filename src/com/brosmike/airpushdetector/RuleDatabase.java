@@ -0,0 +1,201 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * Reads and writes rule files, which let AdProviders and whitelist entries be updated without an app release
+ *
+ * A rule file holds a RuleMatcher with its trie already compiled, so loading one is a memory map and a few bulk
+ * copies rather than a rebuild. Each loaded file becomes an immutable RuleMatcher which is published through
+ * Detector.setRules; scans take a snapshot of the current rules when they start, so a newer file can be installed
+ * at any time without disturbing scans in progress.
+ *
+ * An installed file is only used while its version is newer than the rules built into the app, so an app update
+ * shipping newer rules takes over from an older downloaded file. A file is never installed over a newer one.
+ *
+ * Updates are delivered by writing them to UPDATE_FILE_NAME in the app's private files directory (or by calling
+ * install() directly); ensureLoaded installs a waiting update the next time the rules are loaded. BatchScanner
+ * --write-rules produces the files.
+ */
+public class RuleDatabase {
+	public static final String FILE_NAME = "rules.bin";
+	/** A downloaded rule file waiting to be installed */
+	public static final String UPDATE_FILE_NAME = "rules_update.bin";
+
+	private static final String TAG = "AirPushDetectorRuleDatabase";
+	private static final int MAGIC = 0x41504452; // "APDR"
+	private static final int FORMAT_VERSION = 1;
+
+	private static boolean sInstalledRulesLoaded = false;
+
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	public static File getUpdateFile(Context context) {
+		return new File(context.getFilesDir(), UPDATE_FILE_NAME);
+	}
+
+	/**
+	 * Installs a waiting update, then publishes the installed rule file if there is one newer than the built-in rules.
+	 * Only reads the files the first time it is called in a process; install() takes care of publishing later updates.
+	 */
+	public static synchronized void ensureLoaded(Context context) {
+		if (sInstalledRulesLoaded) {
+			return;
+		}
+		sInstalledRulesLoaded = true;
+
+		File update = getUpdateFile(context);
+		if (update.exists()) {
+			boolean installed = false;
+			try {
+				InputStream in = new FileInputStream(update);
+				try {
+					installed = install(context, in);
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				Log.w(TAG, "Discarding unreadable rule update", e);
+			}
+			update.delete();
+			if (installed) {
+				return;
+			}
+		}
+
+		File file = getFile(context);
+		if (!file.exists()) {
+			return;
+		}
+		try {
+			publishIfNewer(read(file));
+		} catch (IOException e) {
+			Log.w(TAG, "Ignoring unreadable rule file", e);
+		}
+	}
+
+	/**
+	 * Validates a new rule file and, if it is newer than both the installed file and the built-in rules, replaces the
+	 * installed file with it and publishes it
+	 *
+	 * @return Whether the new file was installed; an older one is dropped and the installed file left alone
+	 * @throws IOException if the new file can't be read, in which case the installed file is left alone
+	 */
+	public static synchronized boolean install(Context context, InputStream source) throws IOException {
+		File file = getFile(context);
+		File tempFile = new File(file.getPath() + ".tmp");
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				byte[] buffer = new byte[8192];
+				int read;
+				while ((read = source.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+			} finally {
+				out.close();
+			}
+
+			RuleMatcher rules = read(tempFile);
+			int installedVersion = Math.max(getInstalledVersion(file), Detector.BUILTIN_RULES_VERSION);
+			if (rules.getVersion() <= installedVersion) {
+				Log.i(TAG, "Not installing rules version " + rules.getVersion() + ", already have version "
+						+ installedVersion);
+				return false;
+			}
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+			sInstalledRulesLoaded = true;
+			publishIfNewer(rules);
+			return true;
+		} finally {
+			tempFile.delete();
+		}
+	}
+
+	/** @return The version of the installed rule file, or -1 if there is none or it can't be read */
+	private static int getInstalledVersion(File file) {
+		if (!file.exists()) {
+			return -1;
+		}
+		try {
+			return read(file).getVersion();
+		} catch (IOException e) {
+			Log.w(TAG, "Replacing unreadable rule file", e);
+			return -1;
+		}
+	}
+
+	private static void publishIfNewer(RuleMatcher rules) {
+		RuleMatcher current = Detector.getRules();
+		if (rules.getVersion() > current.getVersion()) {
+			Log.i(TAG, "Using rules version " + rules.getVersion() + " in place of version " + current.getVersion());
+			Detector.setRules(rules);
+		} else {
+			Log.i(TAG, "Ignoring rules version " + rules.getVersion() + ", already have version " + current.getVersion());
+		}
+	}
+
+	/** Memory maps and reads a rule file */
+	public static RuleMatcher read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if (buffer.remaining() < 8 || buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a rule file");
+			}
+			int formatVersion = buffer.getInt();
+			if (formatVersion != FORMAT_VERSION) {
+				throw new IOException("Unsupported rule file format " + formatVersion);
+			}
+			return RuleMatcher.readFrom(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/** Writes rules in the form read by read() */
+	public static void write(RuleMatcher rules, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			rules.writeTo(out);
+		} finally {
+			out.close();
+		}
+	}
+}
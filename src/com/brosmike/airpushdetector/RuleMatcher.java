@@ -0,0 +1,460 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.brosmike.airpushdetector.Detector.AdProvider;
+import com.brosmike.airpushdetector.Detector.RegexAdProvider;
+import com.brosmike.airpushdetector.Detector.StructuralAdProvider;
+
+/**
+ * An immutable set of AdProviders and whitelisted package prefixes, compiled into a single case-insensitive trie
+ *
+ * Classifies a component name as a particular provider, whitelisted or unknown in one pass over its characters
+ * without allocating, so the cost of a lookup depends on the length of the name rather than the number of rules.
+ * Providers which can't be expressed as a prefix (see AdProvider.isPrefixOnly) are checked after the walk, and only
+ * if they could still beat the best prefix match.
+ */
+public class RuleMatcher {
+	/** classify() result for names which match no provider but do match a whitelisted prefix */
+	public static final int WHITELISTED = -1;
+	/** classify() result for names which match neither a provider nor a whitelisted prefix */
+	public static final int UNKNOWN = -2;
+
+	private static final int NO_MATCH = Integer.MAX_VALUE;
+
+	// Provider types in the serialized form
+	private static final byte TYPE_PREFIX = 0;
+	private static final byte TYPE_STRUCTURAL = 1;
+	private static final byte TYPE_REGEX = 2;
+
+	private final int mVersion;
+
+	private final AdProvider[] mProviders;
+	private final String[] mWhitelist;
+
+	// The outgoing edges of node n are mEdgeChars/mEdgeTargets[mEdgeStart[n] .. mEdgeStart[n+1]), sorted by char
+	private final int[] mEdgeStart;
+	private final char[] mEdgeChars;
+	private final int[] mEdgeTargets;
+	// Lowest index of a prefix provider ending at each node, or NO_MATCH
+	private final int[] mNodeProvider;
+	// First whitelist entry ending at each node, or -1. Entries differing only in case share a node, so they are
+	// chained through mWhitelistNext and checked against the original (case sensitive) entry.
+	private final int[] mNodeWhitelist;
+	private final int[] mWhitelistNext;
+	// Indexes of providers which must be checked individually, in ascending order
+	private final int[] mPatternProviders;
+	private final int mFingerprint;
+
+	/** Mutable trie node, only used while compiling */
+	private static class BuildNode {
+		final TreeMap<Character, BuildNode> children = new TreeMap<Character, BuildNode>();
+		int provider = NO_MATCH;
+		int whitelist = -1;
+		int id;
+	}
+
+	/**
+	 * @param version Identifies this set of rules. Newer sets of rules should have higher versions.
+	 */
+	public RuleMatcher(int version, AdProvider[] providers, String[] whitelist) {
+		mVersion = version;
+		mProviders = providers.clone();
+		mWhitelist = whitelist.clone();
+		mWhitelistNext = new int[mWhitelist.length];
+
+		BuildNode root = new BuildNode();
+		List<Integer> patternProviders = new ArrayList<Integer>();
+		for (int i = 0; i < mProviders.length; i++) {
+			if (!mProviders[i].isPrefixOnly()) {
+				patternProviders.add(i);
+				continue;
+			}
+			BuildNode node = insert(root, mProviders[i].packagePrefix);
+			node.provider = Math.min(node.provider, i);
+		}
+		for (int i = mWhitelist.length - 1; i >= 0; i--) {
+			// Inserting in reverse keeps each chain in whitelist order
+			BuildNode node = insert(root, mWhitelist[i]);
+			mWhitelistNext[i] = node.whitelist;
+			node.whitelist = i;
+		}
+
+		mPatternProviders = new int[patternProviders.size()];
+		for (int i = 0; i < mPatternProviders.length; i++) {
+			mPatternProviders[i] = patternProviders.get(i);
+		}
+
+		// Flatten breadth-first so that node ids are assigned before their edges are written
+		List<BuildNode> nodes = new ArrayList<BuildNode>();
+		nodes.add(root);
+		int edgeCount = 0;
+		for (int i = 0; i < nodes.size(); i++) {
+			BuildNode node = nodes.get(i);
+			node.id = i;
+			nodes.addAll(node.children.values());
+			edgeCount += node.children.size();
+		}
+
+		mEdgeStart = new int[nodes.size() + 1];
+		mEdgeChars = new char[edgeCount];
+		mEdgeTargets = new int[edgeCount];
+		mNodeProvider = new int[nodes.size()];
+		mNodeWhitelist = new int[nodes.size()];
+		int edge = 0;
+		for (BuildNode node : nodes) {
+			mEdgeStart[node.id] = edge;
+			mNodeProvider[node.id] = node.provider;
+			mNodeWhitelist[node.id] = node.whitelist;
+			for (Map.Entry<Character, BuildNode> child : node.children.entrySet()) {
+				mEdgeChars[edge] = child.getKey();
+				mEdgeTargets[edge] = child.getValue().id;
+				edge++;
+			}
+		}
+		mEdgeStart[nodes.size()] = edge;
+
+		mFingerprint = computeFingerprint(mProviders, mWhitelist);
+	}
+
+	/** Wraps already compiled tables, as read by readFrom */
+	private RuleMatcher(int version, AdProvider[] providers, String[] whitelist, int[] edgeStart, char[] edgeChars,
+			int[] edgeTargets, int[] nodeProvider, int[] nodeWhitelist, int[] whitelistNext, int[] patternProviders,
+			int fingerprint) {
+		mVersion = version;
+		mProviders = providers;
+		mWhitelist = whitelist;
+		mEdgeStart = edgeStart;
+		mEdgeChars = edgeChars;
+		mEdgeTargets = edgeTargets;
+		mNodeProvider = nodeProvider;
+		mNodeWhitelist = nodeWhitelist;
+		mWhitelistNext = whitelistNext;
+		mPatternProviders = patternProviders;
+		mFingerprint = fingerprint;
+	}
+
+	/**
+	 * Writes this matcher, including its compiled trie, in the form read by readFrom
+	 *
+	 * @throws IllegalArgumentException if a provider is of a type which can't be serialized
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(mVersion);
+		out.writeInt(mFingerprint);
+		out.writeInt(mProviders.length);
+		for (AdProvider provider : mProviders) {
+			Class<?> type = provider.getClass();
+			if (type == AdProvider.class) {
+				out.writeByte(TYPE_PREFIX);
+			} else if (type == StructuralAdProvider.class) {
+				out.writeByte(TYPE_STRUCTURAL);
+			} else if (type == RegexAdProvider.class) {
+				out.writeByte(TYPE_REGEX);
+			} else {
+				throw new IllegalArgumentException("Can't serialize provider of type " + type.getName());
+			}
+			writeString(out, provider.friendlyName);
+			writeString(out, provider.getRule());
+		}
+		out.writeInt(mWhitelist.length);
+		for (String prefix : mWhitelist) {
+			writeString(out, prefix);
+		}
+
+		out.writeInt(mNodeProvider.length);
+		out.writeInt(mEdgeChars.length);
+		out.writeInt(mPatternProviders.length);
+		writeInts(out, mEdgeStart);
+		for (char c : mEdgeChars) {
+			out.writeChar(c);
+		}
+		writeInts(out, mEdgeTargets);
+		writeInts(out, mNodeProvider);
+		writeInts(out, mNodeWhitelist);
+		writeInts(out, mWhitelistNext);
+		writeInts(out, mPatternProviders);
+	}
+
+	/**
+	 * Reads a matcher written by writeTo, starting at the buffer's current position
+	 *
+	 * The compiled trie is copied out in bulk rather than rebuilt, so this costs little more than reading the rule
+	 * strings themselves. Every table index is checked, so a damaged buffer fails here rather than in classify().
+	 */
+	public static RuleMatcher readFrom(ByteBuffer in) throws IOException {
+		try {
+			int version = in.getInt();
+			int fingerprint = in.getInt();
+
+			AdProvider[] providers = new AdProvider[checkCount(in.getInt())];
+			for (int i = 0; i < providers.length; i++) {
+				byte type = in.get();
+				String friendlyName = readString(in);
+				String rule = readString(in);
+				if (type == TYPE_PREFIX) {
+					providers[i] = new AdProvider(friendlyName, rule);
+				} else if (type == TYPE_STRUCTURAL) {
+					providers[i] = new StructuralAdProvider(friendlyName, rule);
+				} else if (type == TYPE_REGEX) {
+					providers[i] = new RegexAdProvider(friendlyName, rule);
+				} else {
+					throw new IOException("Unknown provider type " + type);
+				}
+			}
+			String[] whitelist = new String[checkCount(in.getInt())];
+			for (int i = 0; i < whitelist.length; i++) {
+				whitelist[i] = readString(in);
+			}
+
+			int nodeCount = checkCount(in.getInt());
+			int edgeCount = checkCount(in.getInt());
+			int patternCount = checkCount(in.getInt());
+			if (nodeCount == 0) {
+				throw new IOException("Missing trie root");
+			}
+			int[] edgeStart = readInts(in, nodeCount + 1);
+			char[] edgeChars = new char[edgeCount];
+			in.asCharBuffer().get(edgeChars);
+			in.position(in.position() + edgeCount * 2);
+			int[] edgeTargets = readInts(in, edgeCount);
+			int[] nodeProvider = readInts(in, nodeCount);
+			int[] nodeWhitelist = readInts(in, nodeCount);
+			int[] whitelistNext = readInts(in, whitelist.length);
+			int[] patternProviders = readInts(in, patternCount);
+
+			for (int i = 0; i < nodeCount; i++) {
+				if (edgeStart[i] < 0 || edgeStart[i] > edgeStart[i + 1]) {
+					throw new IOException("Corrupt edge table");
+				}
+				if (nodeProvider[i] != NO_MATCH && !(nodeProvider[i] >= 0 && nodeProvider[i] < providers.length)) {
+					throw new IOException("Corrupt provider table");
+				}
+				checkIndex(nodeWhitelist[i], whitelist.length);
+			}
+			if (edgeStart[nodeCount] != edgeCount) {
+				throw new IOException("Corrupt edge table");
+			}
+			for (int target : edgeTargets) {
+				if (target <= 0 || target >= nodeCount) {
+					throw new IOException("Corrupt edge table");
+				}
+			}
+			for (int next : whitelistNext) {
+				checkIndex(next, whitelist.length);
+			}
+			for (int provider : patternProviders) {
+				if (provider < 0 || provider >= providers.length) {
+					throw new IOException("Corrupt pattern provider table");
+				}
+			}
+
+			return new RuleMatcher(version, providers, whitelist, edgeStart, edgeChars, edgeTargets, nodeProvider,
+					nodeWhitelist, whitelistNext, patternProviders, fingerprint);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated rules");
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid rule: " + e.getMessage());
+		}
+	}
+
+	private static int checkCount(int count) throws IOException {
+		if (count < 0 || count > 0xFFFFFF) {
+			throw new IOException("Implausible table size " + count);
+		}
+		return count;
+	}
+
+	private static void checkIndex(int index, int length) throws IOException {
+		if (index < -1 || index >= length) {
+			throw new IOException("Corrupt whitelist table");
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		out.writeShort(value.length());
+		out.writeChars(value);
+	}
+
+	private static String readString(ByteBuffer in) {
+		char[] chars = new char[in.getShort() & 0xFFFF];
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = in.getChar();
+		}
+		return new String(chars);
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int value : values) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int[] readInts(ByteBuffer in, int count) {
+		int[] values = new int[count];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + count * 4);
+		return values;
+	}
+
+	private static int computeFingerprint(AdProvider[] providers, String[] whitelist) {
+		int hash = 17;
+		for (AdProvider provider : providers) {
+			hash = 31 * hash + provider.getClass().getName().hashCode();
+			hash = 31 * hash + provider.friendlyName.hashCode();
+			hash = 31 * hash + provider.getRule().hashCode();
+		}
+		for (String prefix : whitelist) {
+			hash = 31 * hash + prefix.hashCode();
+		}
+		return hash;
+	}
+
+	private static BuildNode insert(BuildNode root, String prefix) {
+		BuildNode node = root;
+		for (int i = 0; i < prefix.length(); i++) {
+			Character c = Character.toLowerCase(prefix.charAt(i));
+			BuildNode child = node.children.get(c);
+			if (child == null) {
+				child = new BuildNode();
+				node.children.put(c, child);
+			}
+			node = child;
+		}
+		return node;
+	}
+
+	/** @return The node reached by following c out of node, or -1 if there is no such edge */
+	private int step(int node, char c) {
+		int lo = mEdgeStart[node];
+		int hi = mEdgeStart[node + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			char midChar = mEdgeChars[mid];
+			if (midChar < c) {
+				lo = mid + 1;
+			} else if (midChar > c) {
+				hi = mid - 1;
+			} else {
+				return mEdgeTargets[mid];
+			}
+		}
+		return -1;
+	}
+
+	private boolean matchesWhitelistAt(int node, String name) {
+		for (int w = mNodeWhitelist[node]; w >= 0; w = mWhitelistNext[w]) {
+			if (name.startsWith(mWhitelist[w])) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Equivalent to checking every provider's matches() in order, and then every whitelisted prefix
+	 *
+	 * @return The index of the first provider matching name, or WHITELISTED or UNKNOWN if none do
+	 */
+	public int classify(String name) {
+		int best = mNodeProvider[0];
+		boolean whitelisted = matchesWhitelistAt(0, name);
+
+		int node = 0;
+		for (int i = 0, len = name.length(); i < len; i++) {
+			node = step(node, Character.toLowerCase(name.charAt(i)));
+			if (node < 0) {
+				break;
+			}
+			if (mNodeProvider[node] < best) {
+				best = mNodeProvider[node];
+			}
+			if (!whitelisted) {
+				whitelisted = matchesWhitelistAt(node, name);
+			}
+		}
+
+		for (int provider : mPatternProviders) {
+			if (provider >= best) {
+				break;
+			}
+			if (mProviders[provider].matches(name)) {
+				best = provider;
+				break;
+			}
+		}
+
+		if (best != NO_MATCH) {
+			return best;
+		}
+		return whitelisted ? WHITELISTED : UNKNOWN;
+	}
+
+	/** @return Whether name starts with any whitelisted prefix, regardless of provider matches */
+	public boolean isWhitelisted(String name) {
+		if (matchesWhitelistAt(0, name)) {
+			return true;
+		}
+		int node = 0;
+		for (int i = 0, len = name.length(); i < len; i++) {
+			node = step(node, Character.toLowerCase(name.charAt(i)));
+			if (node < 0) {
+				return false;
+			}
+			if (matchesWhitelistAt(node, name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public AdProvider getProvider(int index) {
+		return mProviders[index];
+	}
+
+	public int getProviderCount() {
+		return mProviders.length;
+	}
+
+	/** @return The index of provider within this matcher, or -1 if it isn't one of its providers */
+	public int indexOf(AdProvider provider) {
+		for (int i = 0; i < mProviders.length; i++) {
+			if (mProviders[i] == provider) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	public int getVersion() {
+		return mVersion;
+	}
+
+	/** @return A hash of every rule, which changes whenever a rule is added, removed or altered */
+	public int getFingerprint() {
+		return mFingerprint;
+	}
+}
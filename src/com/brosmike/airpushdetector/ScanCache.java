@@ -0,0 +1,266 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.os.Build;
+import android.util.Log;
+
+import com.brosmike.airpushdetector.Detector.AdSource;
+import com.brosmike.airpushdetector.Detector.PackageScan;
+import com.brosmike.airpushdetector.Detector.ScanContext;
+
+/**
+ * Persisted per-package scan verdicts, so that a rescan only needs to fetch and classify packages which were
+ * installed or updated since the last one
+ *
+ * A verdict is only reused if the package's versionCode and lastUpdateTime are unchanged. The whole cache is
+ * discarded if the rules it was built with differ from the current ones. Verdicts from ordinary scans don't count
+ * for deep scans, nor verdicts which stopped at the first provider for complete-match scans; those scans rescan the
+ * packages and replace their verdicts.
+ */
+public class ScanCache {
+	public static final String FILE_NAME = "scan_cache.bin";
+
+	/** Held while loading or saving the cache file, since full scans and PackageScanService both write it */
+	public static final Object FILE_LOCK = new Object();
+
+	private static final String TAG = "AirPushDetectorScanCache";
+	private static final int MAGIC = 0x41504443; // "APDC"
+	private static final int FORMAT_VERSION = 4; // 3: Verdicts include the extended stage of scanPackage; 4: complete matches
+	private static final int NO_PROVIDER = -1;
+
+	/** Cached outcome of scanning one version of a package */
+	private static class Verdict {
+		int versionCode;
+		long lastUpdateTime;
+		boolean deepScanned;
+		boolean completeMatch;
+		int providerIndex = NO_PROVIDER;
+		long[] providerBits;
+		int matchedComponentTypes;
+		String componentName;
+		String[] suspiciousPackages;
+	}
+
+	private final File mFile;
+	private final RuleMatcher mRules;
+	private final Map<String, Verdict> mVerdicts = new HashMap<String, Verdict>();
+	private boolean mDirty = false;
+
+	private ScanCache(File file, RuleMatcher rules) {
+		mFile = file;
+		mRules = rules;
+	}
+
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/** Reads the cache from disk. Missing, corrupt or outdated caches are treated as empty. */
+	public static ScanCache load(File file, RuleMatcher rules) {
+		ScanCache cache = new ScanCache(file, rules);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION || in.readInt() != rules.getFingerprint()) {
+				Log.i(TAG, "Discarding scan cache built by a different version");
+				return cache;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String packageName = in.readUTF();
+				Verdict verdict = new Verdict();
+				verdict.versionCode = in.readInt();
+				verdict.lastUpdateTime = in.readLong();
+				verdict.deepScanned = in.readBoolean();
+				verdict.completeMatch = in.readBoolean();
+				verdict.providerIndex = in.readShort();
+				if (verdict.providerIndex != NO_PROVIDER) {
+					verdict.componentName = in.readUTF();
+					verdict.providerBits = new long[in.readShort()];
+					for (int j = 0; j < verdict.providerBits.length; j++) {
+						verdict.providerBits[j] = in.readLong();
+					}
+					verdict.matchedComponentTypes = in.readInt();
+				}
+				verdict.suspiciousPackages = new String[in.readShort()];
+				for (int j = 0; j < verdict.suspiciousPackages.length; j++) {
+					verdict.suspiciousPackages[j] = in.readUTF();
+				}
+				cache.mVerdicts.put(packageName, verdict);
+			}
+		} catch (FileNotFoundException e) {
+			// First scan
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable scan cache", e);
+			cache.mVerdicts.clear();
+		} finally {
+			closeQuietly(in);
+		}
+		return cache;
+	}
+
+	/** Writes the cache back to disk, if it changed since it was loaded */
+	public void save() {
+		if (!mDirty) {
+			return;
+		}
+		// Write to a temporary file first so that a crash mid-write can't leave a truncated cache behind
+		File tempFile = new File(mFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(mRules.getFingerprint());
+			out.writeInt(mVerdicts.size());
+			for (Map.Entry<String, Verdict> entry : mVerdicts.entrySet()) {
+				Verdict verdict = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeInt(verdict.versionCode);
+				out.writeLong(verdict.lastUpdateTime);
+				out.writeBoolean(verdict.deepScanned);
+				out.writeBoolean(verdict.completeMatch);
+				out.writeShort(verdict.providerIndex);
+				if (verdict.providerIndex != NO_PROVIDER) {
+					out.writeUTF(verdict.componentName);
+					out.writeShort(verdict.providerBits.length);
+					for (long word : verdict.providerBits) {
+						out.writeLong(word);
+					}
+					out.writeInt(verdict.matchedComponentTypes);
+				}
+				out.writeShort(verdict.suspiciousPackages.length);
+				for (String suspiciousPackage : verdict.suspiciousPackages) {
+					out.writeUTF(suspiciousPackage);
+				}
+			}
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(mFile)) {
+				throw new IOException("Could not replace " + mFile);
+			}
+			mDirty = false;
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to save scan cache", e);
+			tempFile.delete();
+		} finally {
+			closeQuietly(out);
+		}
+	}
+
+	/**
+	 * @param pkg An installed package. Only the fields populated by getInstalledPackages(0) are required.
+	 * @param context The scan wanting a verdict, whose deepScan and completeMatch the verdict must live up to
+	 * @return The result of scanning pkg as it was last seen, or null if it has not been scanned at this version
+	 */
+	public PackageScan get(PackageInfo pkg, ScanContext context) {
+		Verdict verdict = mVerdicts.get(pkg.packageName);
+		if (verdict == null || verdict.versionCode != pkg.versionCode || verdict.lastUpdateTime != getLastUpdateTime(pkg)
+				|| (context.deepScan && !verdict.deepScanned) || (context.completeMatch && !verdict.completeMatch)) {
+			return null;
+		}
+
+		PackageScan scan = new PackageScan(pkg.packageName);
+		scan.deepScanned = verdict.deepScanned;
+		scan.completeMatch = verdict.completeMatch;
+		if (verdict.providerIndex != NO_PROVIDER) {
+			scan.adSource = new AdSource(pkg, verdict.componentName, verdict.providerIndex, mRules.getProvider(verdict.providerIndex));
+			scan.providerBits = verdict.providerBits;
+			scan.matchedComponentTypes = verdict.matchedComponentTypes;
+		}
+		if (verdict.suspiciousPackages.length > 0) {
+			scan.suspiciousPackages = new HashSet<String>(Arrays.asList(verdict.suspiciousPackages));
+		}
+		return scan;
+	}
+
+	/** Records the result of a fresh scan of pkg */
+	public void put(PackageInfo pkg, PackageScan scan) {
+		Verdict verdict = new Verdict();
+		verdict.versionCode = pkg.versionCode;
+		verdict.lastUpdateTime = getLastUpdateTime(pkg);
+		verdict.deepScanned = scan.deepScanned;
+		verdict.completeMatch = scan.completeMatch;
+		if (scan.adSource != null) {
+			verdict.providerIndex = scan.adSource.providerIndex;
+			verdict.componentName = scan.adSource.componentName;
+			verdict.providerBits = scan.providerBits;
+			verdict.matchedComponentTypes = scan.matchedComponentTypes;
+		}
+		verdict.suspiciousPackages = scan.suspiciousPackages.toArray(new String[scan.suspiciousPackages.size()]);
+		mVerdicts.put(pkg.packageName, verdict);
+		mDirty = true;
+	}
+
+	/** Forgets a single package which has been uninstalled */
+	public void remove(String packageName) {
+		if (mVerdicts.remove(packageName) != null) {
+			mDirty = true;
+		}
+	}
+
+	/** Forgets any packages which are no longer installed */
+	public void retainAll(Collection<PackageInfo> installed) {
+		Set<String> installedNames = new HashSet<String>();
+		for (PackageInfo pkg : installed) {
+			installedNames.add(pkg.packageName);
+		}
+		Iterator<String> it = mVerdicts.keySet().iterator();
+		while (it.hasNext()) {
+			if (!installedNames.contains(it.next())) {
+				it.remove();
+				mDirty = true;
+			}
+		}
+	}
+
+	private static long getLastUpdateTime(PackageInfo pkg) {
+		// Not available before Gingerbread, where versionCode alone has to do
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD ? pkg.lastUpdateTime : 0;
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException e) {
+				// Nothing useful to do
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.util.Log;
+
+import com.brosmike.airpushdetector.Detector.PackageScan;
+import com.brosmike.airpushdetector.Detector.ScanContext;
+
+/**
+ * Runs Detector.scanPackage for a list of packages on a pool of worker threads sized to the device's cores
+ *
+ * Unless the PackageFetcher prefetched them, most of the time spent scanning a package is binder IPC latency in
+ * getPackageInfo, so keeping several requests in flight at once overlaps that waiting. Results are still handed
+ * back one at a time in the original order, so the single consuming thread can build its output without any
+ * locking.
+ *
+ * Only a bounded window of packages is queued ahead of the consumer, which keeps memory flat on large inventories and
+ * means cancelling (via shutdown) only ever throws away a handful of in-flight requests.
+ *
+ * A package whose scan throws, e.g. because a vendor PackageManager refuses it, is logged, counted and skipped like
+ * one uninstalled mid-scan, so one bad package can't end the whole scan.
+ */
+public class ScanEngine {
+	private static final String TAG = "AirPushDetectorScanEngine";
+
+	/** How many packages to keep queued per worker thread */
+	private static final int WINDOW_PER_THREAD = 4;
+
+	private final PackageFetcher mFetcher;
+	private final List<String> mPackageNames;
+	private final ScanContext mContext;
+	private final ExecutorService mExecutor;
+	private final int mWindowSize;
+	private final LinkedList<Future<PackageScan>> mPending = new LinkedList<Future<PackageScan>>();
+	private final Set<String> mFailed = new HashSet<String>();
+	private int mNextToSubmit = 0;
+	private int mNextToReturn = 0;
+
+	public ScanEngine(PackageFetcher fetcher, List<String> packageNames, ScanContext context) {
+		this(fetcher, packageNames, context, Runtime.getRuntime().availableProcessors());
+	}
+
+	public ScanEngine(PackageFetcher fetcher, List<String> packageNames, ScanContext context, int threadCount) {
+		mFetcher = fetcher;
+		mPackageNames = packageNames;
+		mContext = context;
+		threadCount = Math.max(1, threadCount);
+		mExecutor = Executors.newFixedThreadPool(threadCount, new WorkerThreadFactory());
+		mWindowSize = threadCount * WINDOW_PER_THREAD;
+		fillWindow();
+	}
+
+	/**
+	 * Blocks until the next package in order has been scanned
+	 *
+	 * @return The scan of the next package, or null if it was uninstalled before we got to it or its scan failed
+	 */
+	public PackageScan next() throws InterruptedException {
+		Future<PackageScan> head = mPending.poll();
+		if (head == null) {
+			throw new IllegalStateException("No packages left to scan");
+		}
+		String packageName = mPackageNames.get(mNextToReturn++);
+		fillWindow();
+		try {
+			return head.get();
+		} catch (ExecutionException e) {
+			Log.w(TAG, "Failed to scan package " + packageName, e.getCause());
+			mContext.stats.incrementCounter(ScanStats.COUNTER_FAILED);
+			mFailed.add(packageName);
+			return null;
+		}
+	}
+
+	/** @return Whether next() returned null for the package because its scan failed, rather than it being uninstalled */
+	public boolean hasFailed(String packageName) {
+		return mFailed.contains(packageName);
+	}
+
+	/** Abandons any outstanding work. Must be called once the engine is no longer needed. */
+	public void shutdown() {
+		for (Future<PackageScan> pending : mPending) {
+			pending.cancel(true);
+		}
+		mPending.clear();
+		mExecutor.shutdownNow();
+	}
+
+	private void fillWindow() {
+		while (mPending.size() < mWindowSize && mNextToSubmit < mPackageNames.size()) {
+			mPending.add(mExecutor.submit(new ScanCallable(mPackageNames.get(mNextToSubmit++))));
+		}
+	}
+
+	private class ScanCallable implements Callable<PackageScan> {
+		private final String mPackageName;
+		ScanCallable(String packageName) {
+			mPackageName = packageName;
+		}
+		@Override
+		public PackageScan call() {
+			try {
+				return Detector.scanPackage(mFetcher, mPackageName, mContext);
+			} catch (NameNotFoundException e) {
+				Log.w(TAG, "Package " + mPackageName + " was uninstalled while scanning");
+				return null;
+			}
+		}
+	}
+
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final AtomicInteger mCount = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ScanEngine #" + mCount.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	}
+}
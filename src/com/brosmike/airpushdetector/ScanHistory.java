@@ -0,0 +1,627 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.brosmike.airpushdetector.Detector.PackageScan;
+
+/**
+ * Append-only history of what changed between scans, for telling what's new on a device
+ *
+ * Only apps with findings (a provider or suspicious prefixes) are tracked. Each scan appends one record holding just
+ * the apps whose findings changed since the previous scan, so the log grows with churn rather than inventory, and
+ * reading the latest changes costs time proportional to those changes. Records end with their own length, so they
+ * are read newest first by walking backwards from the end of the file. The findings of the latest scan are kept in
+ * a separate head file to diff the next scan against.
+ *
+ * The oldest records are dropped once the log outgrows MAX_LOG_BYTES.
+ */
+public class ScanHistory {
+	public static final String LOG_FILE_NAME = "scan_history.bin";
+	public static final String HEAD_FILE_NAME = "scan_history_head.bin";
+	public static final int MAX_LOG_BYTES = 512 * 1024;
+
+	/** Held while loading or recording history */
+	public static final Object FILE_LOCK = new Object();
+
+	private static final String TAG = "AirPushDetectorScanHistory";
+	private static final int HEAD_MAGIC = 0x41504448; // "APDH"
+	private static final int RECORD_MAGIC = 0x41504445; // "APDE", ends each record
+	// 2: Every provider found and the component types matched; 3: RECORD_MAGIC no longer shared with rule files
+	private static final int FORMAT_VERSION = 3;
+	private static final int TRAILER_SIZE = 8;
+	private static final int FLAG_UNINSTALLED = 1;
+	private static final String[] NONE = new String[0];
+
+	/**
+	 * What a scan found in one app
+	 *
+	 * Providers are kept by name rather than as PackageScan.providerBits, whose indices shift whenever the rules are
+	 * updated.
+	 */
+	public static class AppState {
+		/** AdProvider.friendlyName of the first provider found, or null */
+		public final String provider;
+		/** Sorted friendlyNames of every provider found; only the first unless the scan was a complete match */
+		public final String[] providers;
+		/** Bitset of the ScanStats.COMPONENT_* types in which providers were matched */
+		public final int componentTypes;
+		/** See ScanContext.completeMatch */
+		public final boolean completeMatch;
+		/** Sorted suspicious prefixes */
+		public final String[] prefixes;
+		/** @param rules The rules scan was made with, which name its providerBits */
+		public AppState(PackageScan scan, RuleMatcher rules) {
+			provider = scan.adSource == null ? null : scan.adSource.providerName;
+			List<String> names = new ArrayList<String>();
+			for (int word = 0; word < scan.providerBits.length; word++) {
+				for (long bits = scan.providerBits[word]; bits != 0; bits &= bits - 1) {
+					String name = rules.getProvider((word << 6) + Long.numberOfTrailingZeros(bits)).friendlyName;
+					if (!names.contains(name)) {
+						names.add(name);
+					}
+				}
+			}
+			providers = names.toArray(new String[names.size()]);
+			Arrays.sort(providers);
+			componentTypes = scan.matchedComponentTypes;
+			completeMatch = scan.completeMatch;
+			prefixes = scan.suspiciousPackages.toArray(new String[scan.suspiciousPackages.size()]);
+			Arrays.sort(prefixes);
+		}
+		private AppState(String provider, String[] providers, int componentTypes, boolean completeMatch, String[] prefixes) {
+			this.provider = provider;
+			this.providers = providers;
+			this.componentTypes = componentTypes;
+			this.completeMatch = completeMatch;
+			this.prefixes = prefixes;
+		}
+		private boolean sameAs(AppState other) {
+			if (other == null || !(provider == null ? other.provider == null : provider.equals(other.provider))
+					|| !Arrays.equals(prefixes, other.prefixes)) {
+				return false;
+			}
+			return !isComparable(this, other) || (Arrays.equals(providers, other.providers) && componentTypes == other.componentTypes);
+		}
+		/**
+		 * @return Whether the providers and component types of two states can be compared. A scan which stopped at
+		 *     the first provider can't tell whether the others a complete match found are still there.
+		 */
+		private static boolean isComparable(AppState old, AppState now) {
+			return old == null || now == null || old.completeMatch == now.completeMatch;
+		}
+	}
+
+	/** How one app's findings changed */
+	public static class AppChange {
+		public final String packageName;
+		/** Provider before and after the change, or null for none */
+		public final String oldProvider;
+		public final String newProvider;
+		/** Providers found or no longer found, besides the first */
+		public final List<String> addedProviders;
+		public final List<String> removedProviders;
+		/** AppState.componentTypes before and after the change */
+		public final int oldComponentTypes;
+		public final int newComponentTypes;
+		public final List<String> addedPrefixes;
+		public final List<String> removedPrefixes;
+		/** Whether the findings went away because the app was uninstalled */
+		public final boolean uninstalled;
+		AppChange(String packageName, String oldProvider, String newProvider, List<String> addedProviders, List<String> removedProviders,
+				int oldComponentTypes, int newComponentTypes, List<String> addedPrefixes, List<String> removedPrefixes, boolean uninstalled) {
+			this.packageName = packageName;
+			this.oldProvider = oldProvider;
+			this.newProvider = newProvider;
+			this.addedProviders = addedProviders;
+			this.removedProviders = removedProviders;
+			this.oldComponentTypes = oldComponentTypes;
+			this.newComponentTypes = newComponentTypes;
+			this.addedPrefixes = addedPrefixes;
+			this.removedPrefixes = removedPrefixes;
+			this.uninstalled = uninstalled;
+		}
+		/** @return Whether the app gained a provider (or switched to a different one) */
+		public boolean isNewAdSource() {
+			return newProvider != null && !newProvider.equals(oldProvider);
+		}
+		/** @return Whether the app lost (or switched away from) a provider without being uninstalled */
+		public boolean isDroppedAdSource() {
+			return !uninstalled && oldProvider != null && !oldProvider.equals(newProvider);
+		}
+	}
+
+	/** Every app whose findings changed between two scans */
+	public static class ScanDiff {
+		/** System.currentTimeMillis() of the later scan */
+		public final long timestamp;
+		public final List<AppChange> changes;
+		ScanDiff(long timestamp, List<AppChange> changes) {
+			this.timestamp = timestamp;
+			this.changes = changes;
+		}
+		public List<AppChange> getNewAdSources() {
+			List<AppChange> result = new ArrayList<AppChange>();
+			for (AppChange change : changes) {
+				if (change.isNewAdSource()) result.add(change);
+			}
+			return result;
+		}
+		public List<AppChange> getDroppedAdSources() {
+			List<AppChange> result = new ArrayList<AppChange>();
+			for (AppChange change : changes) {
+				if (change.isDroppedAdSource()) result.add(change);
+			}
+			return result;
+		}
+		/** Appends a single detection log line summarizing the changes */
+		public void appendTo(StringBuilder log) {
+			log.append("[changes: apps=").append(changes.size());
+			for (AppChange change : getNewAdSources()) {
+				log.append(" +").append(change.packageName).append('=').append(change.newProvider);
+			}
+			for (AppChange change : getDroppedAdSources()) {
+				log.append(" -").append(change.packageName).append('=').append(change.oldProvider);
+			}
+			log.append("]\n");
+		}
+	}
+
+	private final File mLogFile;
+	private final File mHeadFile;
+	private final Map<String, AppState> mHead = new HashMap<String, AppState>();
+	private boolean mHasHead = false;
+
+	private ScanHistory(File logFile, File headFile) {
+		mLogFile = logFile;
+		mHeadFile = headFile;
+	}
+
+	/** Loads the findings of the last recorded scan. Missing or corrupt history starts afresh. */
+	public static ScanHistory load(Context context) {
+		ScanHistory history = new ScanHistory(new File(context.getFilesDir(), LOG_FILE_NAME), new File(context.getFilesDir(), HEAD_FILE_NAME));
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(history.mHeadFile)));
+			if (in.readInt() != HEAD_MAGIC || in.readInt() != FORMAT_VERSION) {
+				throw new IOException("Unrecognized history head");
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String packageName = in.readUTF();
+				String provider = in.readBoolean() ? in.readUTF() : null;
+				boolean completeMatch = in.readBoolean();
+				int componentTypes = in.readInt();
+				String[] providers = new String[in.readShort()];
+				for (int j = 0; j < providers.length; j++) {
+					providers[j] = in.readUTF();
+				}
+				String[] prefixes = new String[in.readShort()];
+				for (int j = 0; j < prefixes.length; j++) {
+					prefixes[j] = in.readUTF();
+				}
+				history.mHead.put(packageName, new AppState(provider, providers, componentTypes, completeMatch, prefixes));
+			}
+			history.mHasHead = true;
+		} catch (FileNotFoundException e) {
+			// No scan recorded yet
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable scan history", e);
+			history.mHead.clear();
+			history.mLogFile.delete();
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+		return history;
+	}
+
+	/** @return The state of an app as of the last recorded scan, or null if it had no findings */
+	public AppState getState(String packageName) {
+		return mHead.get(packageName);
+	}
+
+	/**
+	 * Records a completed scan, appending its changes since the last one
+	 *
+	 * @param findings The state of every app with findings, by package name
+	 * @param installed Every package installed at the time of the scan
+	 * @return The changes since the last recorded scan, or null if this is the first
+	 */
+	public ScanDiff record(long timestamp, Map<String, AppState> findings, Set<String> installed) {
+		List<AppChange> changes = new ArrayList<AppChange>();
+		for (Map.Entry<String, AppState> entry : findings.entrySet()) {
+			AppState old = mHead.get(entry.getKey());
+			if (!entry.getValue().sameAs(old)) {
+				changes.add(change(entry.getKey(), old, entry.getValue(), false));
+			}
+		}
+		for (Map.Entry<String, AppState> entry : mHead.entrySet()) {
+			if (!findings.containsKey(entry.getKey())) {
+				changes.add(change(entry.getKey(), entry.getValue(), null, !installed.contains(entry.getKey())));
+			}
+		}
+		ScanDiff diff = new ScanDiff(timestamp, changes);
+		boolean first = !mHasHead;
+
+		mHead.clear();
+		mHead.putAll(findings);
+		mHasHead = true;
+		try {
+			if (!changes.isEmpty() || first) {
+				appendRecord(diff);
+			}
+			writeHead();
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to record scan history", e);
+		}
+		return first ? null : diff;
+	}
+
+	/** @return Up to maxCount recorded diffs, newest first, reading only those records */
+	public List<ScanDiff> getRecentDiffs(int maxCount) {
+		List<ScanDiff> diffs = new ArrayList<ScanDiff>();
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(mLogFile, "r");
+			long end = file.length();
+			while (end > 0 && diffs.size() < maxCount) {
+				byte[] payload = readRecordBefore(file, end);
+				diffs.add(decode(new DataInputStream(new ByteArrayInputStream(payload))));
+				end -= payload.length + TRAILER_SIZE;
+			}
+		} catch (FileNotFoundException e) {
+			// Nothing recorded yet
+		} catch (IOException e) {
+			Log.w(TAG, "Stopped reading corrupt scan history", e);
+		} finally {
+			if (file != null) {
+				try { file.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+		return diffs;
+	}
+
+	/**
+	 * Folds every change recorded after sinceTimestamp into one diff per app, from its state before the first of
+	 * those scans to its state after the last. Apps which changed and then changed back are left out.
+	 */
+	public ScanDiff getChangesSince(long sinceTimestamp) {
+		List<ScanDiff> newestFirst = new ArrayList<ScanDiff>();
+		for (ScanDiff diff : getRecentDiffs(Integer.MAX_VALUE)) {
+			if (diff.timestamp <= sinceTimestamp) break;
+			newestFirst.add(diff);
+		}
+		Collections.reverse(newestFirst);
+
+		// Chronological fold; each provider's and prefix's net count ends up as +1 (added), -1 (removed) or 0 (unchanged)
+		Map<String, AppChange> first = new LinkedHashMap<String, AppChange>();
+		Map<String, AppChange> last = new HashMap<String, AppChange>();
+		Map<String, Map<String, Integer>> netProviders = new HashMap<String, Map<String, Integer>>();
+		Map<String, Map<String, Integer>> netPrefixes = new HashMap<String, Map<String, Integer>>();
+		for (ScanDiff diff : newestFirst) {
+			for (AppChange change : diff.changes) {
+				if (!first.containsKey(change.packageName)) {
+					first.put(change.packageName, change);
+					netProviders.put(change.packageName, new HashMap<String, Integer>());
+					netPrefixes.put(change.packageName, new HashMap<String, Integer>());
+				}
+				last.put(change.packageName, change);
+				Map<String, Integer> net = netProviders.get(change.packageName);
+				for (String provider : change.addedProviders) addNet(net, provider, 1);
+				for (String provider : change.removedProviders) addNet(net, provider, -1);
+				net = netPrefixes.get(change.packageName);
+				for (String prefix : change.addedPrefixes) addNet(net, prefix, 1);
+				for (String prefix : change.removedPrefixes) addNet(net, prefix, -1);
+			}
+		}
+
+		List<AppChange> folded = new ArrayList<AppChange>();
+		for (AppChange oldest : first.values()) {
+			AppChange newest = last.get(oldest.packageName);
+			List<String> addedProviders = new ArrayList<String>();
+			List<String> removedProviders = new ArrayList<String>();
+			splitNet(netProviders.get(oldest.packageName), addedProviders, removedProviders);
+			List<String> added = new ArrayList<String>();
+			List<String> removed = new ArrayList<String>();
+			splitNet(netPrefixes.get(oldest.packageName), added, removed);
+			boolean providerChanged = oldest.oldProvider == null ? newest.newProvider != null : !oldest.oldProvider.equals(newest.newProvider);
+			if (providerChanged || oldest.oldComponentTypes != newest.newComponentTypes || !addedProviders.isEmpty()
+					|| !removedProviders.isEmpty() || !added.isEmpty() || !removed.isEmpty()) {
+				folded.add(new AppChange(oldest.packageName, oldest.oldProvider, newest.newProvider, addedProviders, removedProviders,
+						oldest.oldComponentTypes, newest.newComponentTypes, added, removed, newest.uninstalled));
+			}
+		}
+		long timestamp = newestFirst.isEmpty() ? sinceTimestamp : newestFirst.get(newestFirst.size() - 1).timestamp;
+		return new ScanDiff(timestamp, folded);
+	}
+
+	private static void addNet(Map<String, Integer> net, String prefix, int delta) {
+		Integer count = net.get(prefix);
+		net.put(prefix, (count == null ? 0 : count) + delta);
+	}
+
+	/** Adds the entries with a positive net count to added and those with a negative one to removed, sorted */
+	private static void splitNet(Map<String, Integer> net, List<String> added, List<String> removed) {
+		for (Map.Entry<String, Integer> entry : net.entrySet()) {
+			if (entry.getValue() > 0) added.add(entry.getKey());
+			else if (entry.getValue() < 0) removed.add(entry.getKey());
+		}
+		Collections.sort(added);
+		Collections.sort(removed);
+	}
+
+	private static AppChange change(String packageName, AppState old, AppState now, boolean uninstalled) {
+		List<String> addedProviders = new ArrayList<String>();
+		List<String> removedProviders = new ArrayList<String>();
+		int oldTypes = old == null ? 0 : old.componentTypes;
+		int newTypes = now == null ? 0 : now.componentTypes;
+		if (AppState.isComparable(old, now)) {
+			diff(old == null ? NONE : old.providers, now == null ? NONE : now.providers, addedProviders, removedProviders);
+		} else {
+			oldTypes = newTypes; // Recorded as unchanged, since they can't be compared
+		}
+		List<String> added = new ArrayList<String>();
+		List<String> removed = new ArrayList<String>();
+		diff(old == null ? NONE : old.prefixes, now == null ? NONE : now.prefixes, added, removed);
+		return new AppChange(packageName, old == null ? null : old.provider, now == null ? null : now.provider,
+				addedProviders, removedProviders, oldTypes, newTypes, added, removed, uninstalled);
+	}
+
+	/** Both sorted, so a single merge pass finds the differences */
+	private static void diff(String[] before, String[] after, List<String> added, List<String> removed) {
+		int i = 0, j = 0;
+		while (i < before.length || j < after.length) {
+			int cmp = i == before.length ? 1 : j == after.length ? -1 : before[i].compareTo(after[j]);
+			if (cmp < 0) {
+				removed.add(before[i++]);
+			} else if (cmp > 0) {
+				added.add(after[j++]);
+			} else {
+				i++;
+				j++;
+			}
+		}
+	}
+
+	/**
+	 * Record layout: timestamp, string table, then each change as varint references into the table (0 for null),
+	 * followed by the trailer: payload length and RECORD_MAGIC
+	 */
+	private void appendRecord(ScanDiff diff) throws IOException {
+		Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+		for (AppChange change : diff.changes) {
+			intern(strings, change.packageName);
+			intern(strings, change.oldProvider);
+			intern(strings, change.newProvider);
+			for (String provider : change.addedProviders) intern(strings, provider);
+			for (String provider : change.removedProviders) intern(strings, provider);
+			for (String prefix : change.addedPrefixes) intern(strings, prefix);
+			for (String prefix : change.removedPrefixes) intern(strings, prefix);
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeLong(diff.timestamp);
+		writeVarint(out, strings.size());
+		for (String string : strings.keySet()) {
+			out.writeUTF(string);
+		}
+		writeVarint(out, diff.changes.size());
+		for (AppChange change : diff.changes) {
+			writeVarint(out, ref(strings, change.packageName));
+			out.writeByte(change.uninstalled ? FLAG_UNINSTALLED : 0);
+			writeVarint(out, ref(strings, change.oldProvider));
+			writeVarint(out, ref(strings, change.newProvider));
+			writeVarint(out, change.addedProviders.size());
+			for (String provider : change.addedProviders) writeVarint(out, ref(strings, provider));
+			writeVarint(out, change.removedProviders.size());
+			for (String provider : change.removedProviders) writeVarint(out, ref(strings, provider));
+			writeVarint(out, change.oldComponentTypes);
+			writeVarint(out, change.newComponentTypes);
+			writeVarint(out, change.addedPrefixes.size());
+			for (String prefix : change.addedPrefixes) writeVarint(out, ref(strings, prefix));
+			writeVarint(out, change.removedPrefixes.size());
+			for (String prefix : change.removedPrefixes) writeVarint(out, ref(strings, prefix));
+		}
+		out.writeInt(bytes.size());
+		out.writeInt(RECORD_MAGIC);
+		out.close();
+
+		if (mLogFile.length() + bytes.size() > MAX_LOG_BYTES) {
+			trimLog(MAX_LOG_BYTES / 2);
+		}
+		FileOutputStream log = new FileOutputStream(mLogFile, true);
+		try {
+			bytes.writeTo(log);
+		} finally {
+			log.close();
+		}
+	}
+
+	private static ScanDiff decode(DataInput in) throws IOException {
+		long timestamp = in.readLong();
+		String[] strings = new String[readVarint(in)];
+		for (int i = 0; i < strings.length; i++) {
+			strings[i] = in.readUTF();
+		}
+		int count = readVarint(in);
+		List<AppChange> changes = new ArrayList<AppChange>(count);
+		for (int i = 0; i < count; i++) {
+			String packageName = deref(strings, readVarint(in));
+			boolean uninstalled = (in.readByte() & FLAG_UNINSTALLED) != 0;
+			String oldProvider = deref(strings, readVarint(in));
+			String newProvider = deref(strings, readVarint(in));
+			List<String> addedProviders = new ArrayList<String>();
+			for (int n = readVarint(in); n > 0; n--) addedProviders.add(deref(strings, readVarint(in)));
+			List<String> removedProviders = new ArrayList<String>();
+			for (int n = readVarint(in); n > 0; n--) removedProviders.add(deref(strings, readVarint(in)));
+			int oldComponentTypes = readVarint(in);
+			int newComponentTypes = readVarint(in);
+			List<String> added = new ArrayList<String>();
+			for (int n = readVarint(in); n > 0; n--) added.add(deref(strings, readVarint(in)));
+			List<String> removed = new ArrayList<String>();
+			for (int n = readVarint(in); n > 0; n--) removed.add(deref(strings, readVarint(in)));
+			changes.add(new AppChange(packageName, oldProvider, newProvider, addedProviders, removedProviders,
+					oldComponentTypes, newComponentTypes, added, removed, uninstalled));
+		}
+		return new ScanDiff(timestamp, changes);
+	}
+
+	/** Keeps only the newest records fitting in maxBytes */
+	private void trimLog(long maxBytes) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(mLogFile, "r");
+		byte[] kept;
+		try {
+			long end = file.length();
+			long start = end;
+			while (start > 0) {
+				int size = readRecordBefore(file, start).length + TRAILER_SIZE;
+				if (end - (start - size) > maxBytes) break;
+				start -= size;
+			}
+			kept = new byte[(int) (end - start)];
+			file.seek(start);
+			file.readFully(kept);
+		} finally {
+			file.close();
+		}
+		File tempFile = new File(mLogFile.getPath() + ".tmp");
+		FileOutputStream out = new FileOutputStream(tempFile);
+		try {
+			out.write(kept);
+		} finally {
+			out.close();
+		}
+		if (!tempFile.renameTo(mLogFile)) {
+			tempFile.delete();
+			throw new IOException("Could not replace " + mLogFile);
+		}
+	}
+
+	private static byte[] readRecordBefore(RandomAccessFile file, long end) throws IOException {
+		if (end < TRAILER_SIZE) {
+			throw new IOException("Truncated record");
+		}
+		file.seek(end - TRAILER_SIZE);
+		int length = file.readInt();
+		if (file.readInt() != RECORD_MAGIC || length < 0 || length > end - TRAILER_SIZE) {
+			throw new IOException("Bad record trailer at " + end);
+		}
+		byte[] payload = new byte[length];
+		file.seek(end - TRAILER_SIZE - length);
+		file.readFully(payload);
+		return payload;
+	}
+
+	private void writeHead() throws IOException {
+		File tempFile = new File(mHeadFile.getPath() + ".tmp");
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+		try {
+			out.writeInt(HEAD_MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(mHead.size());
+			for (Map.Entry<String, AppState> entry : mHead.entrySet()) {
+				AppState state = entry.getValue();
+				out.writeUTF(entry.getKey());
+				out.writeBoolean(state.provider != null);
+				if (state.provider != null) {
+					out.writeUTF(state.provider);
+				}
+				out.writeBoolean(state.completeMatch);
+				out.writeInt(state.componentTypes);
+				out.writeShort(state.providers.length);
+				for (String provider : state.providers) {
+					out.writeUTF(provider);
+				}
+				out.writeShort(state.prefixes.length);
+				for (String prefix : state.prefixes) {
+					out.writeUTF(prefix);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		if (!tempFile.renameTo(mHeadFile)) {
+			tempFile.delete();
+			throw new IOException("Could not replace " + mHeadFile);
+		}
+	}
+
+	private static void intern(Map<String, Integer> strings, String string) {
+		if (string != null && !strings.containsKey(string)) {
+			strings.put(string, strings.size());
+		}
+	}
+
+	private static int ref(Map<String, Integer> strings, String string) {
+		return string == null ? 0 : strings.get(string) + 1;
+	}
+
+	private static String deref(String[] strings, int ref) throws IOException {
+		if (ref < 0 || ref > strings.length) {
+			throw new IOException("Bad string reference " + ref);
+		}
+		return ref == 0 ? null : strings[ref - 1];
+	}
+
+	private static void writeVarint(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(DataInput in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
@@ -0,0 +1,147 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.brosmike.airpushdetector.Detector.AdSource;
+
+/**
+ * The results of the last completed scan, so they can be shown as soon as the app starts
+ *
+ * Only the AdSources are kept, which makes the file small enough (tens of bytes per app found) to read on the UI
+ * thread. They may be stale by the time they are shown; DetectorFragment revalidates them with a background scan.
+ */
+public class ScanSnapshot {
+	public static final String FILE_NAME = "last_scan.bin";
+	/** Hold while reading or writing the file */
+	public static final Object FILE_LOCK = new Object();
+
+	private static final String TAG = "AirPushDetectorScanSnapshot";
+	private static final int MAGIC = 0x41504453; // "APDS"
+	private static final int FORMAT_VERSION = 1;
+
+	/** Whether the scan looked inside app code, which a revalidation should also do */
+	public final boolean deepScan;
+	public final ArrayList<AdSource> adSources;
+
+	public ScanSnapshot(boolean deepScan, List<AdSource> adSources) {
+		this.deepScan = deepScan;
+		this.adSources = new ArrayList<AdSource>(adSources);
+	}
+
+	/** Adds adSource, in place of any earlier one for the same package */
+	public void put(AdSource adSource) {
+		for (int i = 0; i < adSources.size(); i++) {
+			if (adSources.get(i).packageName.equals(adSource.packageName)) {
+				adSources.set(i, adSource);
+				return;
+			}
+		}
+		adSources.add(adSource);
+	}
+
+	/** @return Whether there was an AdSource for the package to remove */
+	public boolean remove(String packageName) {
+		for (int i = 0; i < adSources.size(); i++) {
+			if (adSources.get(i).packageName.equals(packageName)) {
+				adSources.remove(i);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public static File getFile(Context context) {
+		return new File(context.getFilesDir(), FILE_NAME);
+	}
+
+	/** @return The last completed scan, or null if there hasn't been one */
+	public static ScanSnapshot load(File file) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION) {
+				return null;
+			}
+			boolean deepScan = in.readBoolean();
+			int count = in.readInt();
+			List<AdSource> adSources = new ArrayList<AdSource>(Math.min(count, 1024));
+			for (int i = 0; i < count; i++) {
+				String packageName = in.readUTF();
+				int versionCode = in.readInt();
+				String componentName = in.readUTF();
+				int providerIndex = in.readInt();
+				adSources.add(new AdSource(packageName, versionCode, componentName, providerIndex, in.readUTF()));
+			}
+			return new ScanSnapshot(deepScan, adSources);
+		} catch (FileNotFoundException e) {
+			return null; // Never scanned
+		} catch (IOException e) {
+			Log.w(TAG, "Discarding unreadable scan snapshot", e);
+			return null;
+		} finally {
+			if (in != null) {
+				try { in.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+	}
+
+	public void save(File file) {
+		File tempFile = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeBoolean(deepScan);
+			out.writeInt(adSources.size());
+			for (AdSource adSource : adSources) {
+				out.writeUTF(adSource.packageName);
+				out.writeInt(adSource.versionCode);
+				out.writeUTF(adSource.componentName);
+				out.writeInt(adSource.providerIndex);
+				out.writeUTF(adSource.providerName);
+			}
+			out.close();
+			out = null;
+			if (!tempFile.renameTo(file)) {
+				throw new IOException("Could not replace " + file);
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Failed to save scan snapshot", e);
+			tempFile.delete();
+		} finally {
+			if (out != null) {
+				try { out.close(); } catch (IOException e) { /* Nothing useful to do */ }
+			}
+		}
+	}
+}
@@ -0,0 +1,218 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms for a single scan, safe to update from any number of worker threads
+ *
+ * Every update is a handful of atomic adds, so callers on hot paths should total their measurements locally and
+ * record them once per package or component list rather than once per item.
+ *
+ * Histograms use power-of-two microsecond buckets, so reported percentiles are upper bounds accurate to a factor
+ * of two, which is plenty to tell a slow device or a regression apart from noise.
+ */
+public class ScanStats {
+	/** getInstalledPackages */
+	public static final int PHASE_ENUMERATE = 0;
+	/** Loading and saving the ScanCache */
+	public static final int PHASE_CACHE = 1;
+	/** getPackageInfo IPC, per package not prefetched */
+	public static final int PHASE_FETCH = 2;
+	/** Classifying every component of a package, per package */
+	public static final int PHASE_MATCH = 3;
+	/** getPackagePrefix and collecting suspicious packages, per unrecognized component */
+	public static final int PHASE_PREFIX = 4;
+	/** Building detection log entries, per package */
+	public static final int PHASE_LOG = 5;
+	/** Reading classes*.dex for a deep scan, per package */
+	public static final int PHASE_DEX = 6;
+	/** Reading native library symbol tables for a deep scan, per package */
+	public static final int PHASE_NATIVE = 7;
+	/** PackageFetcher.prefetch, including any failed attempts */
+	public static final int PHASE_BULK_FETCH = 8;
+	/** Reading components from an APK's manifest instead of PackageManager, per package */
+	public static final int PHASE_MANIFEST = 9;
+	/** Fetching and checking providers and meta-data for packages the first stage of scanPackage left undecided */
+	public static final int PHASE_EXTENDED = 10;
+	private static final String[] PHASE_NAMES = { "enumerate", "cache", "fetch", "match", "prefix", "log", "dex", "native", "bulk_fetch", "manifest", "extended" };
+
+	public static final int COMPONENT_ACTIVITY = 0;
+	public static final int COMPONENT_RECEIVER = 1;
+	public static final int COMPONENT_SERVICE = 2;
+	/** A class referenced by an app's code, found by a deep scan */
+	public static final int COMPONENT_DEX_CLASS = 3;
+	/** A JNI function exported by an app's native library, found by a deep scan */
+	public static final int COMPONENT_NATIVE_SYMBOL = 4;
+	/** A content provider, checked by the extended stage of scanPackage and by BatchScanner */
+	public static final int COMPONENT_PROVIDER = 5;
+	/** A meta-data key, checked by the extended stage of scanPackage */
+	public static final int COMPONENT_META_DATA = 6;
+	public static final String[] COMPONENT_TYPES = { "ACTIVITY", "RECEIVER", "SERVICE", "DEX_CLASS", "NATIVE_SYMBOL", "PROVIDER", "META_DATA" };
+
+	public static final int COUNTER_PACKAGES = 0;
+	public static final int COUNTER_CACHED = 1;
+	public static final int COUNTER_FETCHED = 2;
+	public static final int COUNTER_VANISHED = 3;
+	/** Deep scans answered by the CodeScanCache */
+	public static final int COUNTER_CODE_CACHED = 4;
+	/** Packages served from a PackageFetcher bulk fetch rather than their own IPC */
+	public static final int COUNTER_PREFETCHED = 5;
+	/** Native libraries a deep scan had to skip because they weren't valid ELF files */
+	public static final int COUNTER_UNREADABLE_LIBRARIES = 6;
+	/** Packages whose components were read from their APK by ManifestParser rather than fetched over IPC */
+	public static final int COUNTER_FROM_MANIFEST = 7;
+	/** Packages which went through the extended stage of scanPackage */
+	public static final int COUNTER_EXTENDED = 8;
+	/** Packages which needed the extended stage after its budget ran out, and so weren't cached */
+	public static final int COUNTER_OVER_BUDGET = 9;
+	/** Packages skipped because scanning them threw */
+	public static final int COUNTER_FAILED = 10;
+	private static final String[] COUNTER_NAMES = { "packages", "cached", "fetched", "vanished", "code_cached", "prefetched", "unreadable_libs", "from_manifest", "extended", "over_budget", "failed" };
+
+	private static final int BUCKETS = 24; // Bucket b counts samples under 2^b microseconds; the last is unbounded
+	private static final int PHASE_COUNT = 0, PHASE_TOTAL_NANOS = 1, PHASE_MAX_NANOS = 2, PHASE_FIELDS = 3;
+
+	private final RuleMatcher mRules;
+	private final AtomicLongArray mPhases = new AtomicLongArray(PHASE_NAMES.length * PHASE_FIELDS);
+	private final AtomicLongArray mHistograms = new AtomicLongArray(PHASE_NAMES.length * BUCKETS);
+	private final AtomicLongArray mCounters = new AtomicLongArray(COUNTER_NAMES.length);
+	private final AtomicLongArray mComponentsExamined = new AtomicLongArray(COMPONENT_TYPES.length);
+	private final AtomicLongArray mComponentsMatched = new AtomicLongArray(COMPONENT_TYPES.length);
+	private final AtomicLongArray mProviderHits;
+	private long mStartNanos;
+	private long mElapsedNanos;
+
+	public ScanStats(RuleMatcher rules) {
+		mRules = rules;
+		mProviderHits = new AtomicLongArray(rules.getProviderCount());
+		mStartNanos = System.nanoTime();
+	}
+
+	/** Records a single timed occurrence of phase in its histogram */
+	public void recordPhase(int phase, long nanos) {
+		addPhaseTotal(phase, nanos, 1);
+		long micros = nanos / 1000;
+		int bucket = micros <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+		mHistograms.incrementAndGet(phase * BUCKETS + bucket);
+
+		int maxIndex = phase * PHASE_FIELDS + PHASE_MAX_NANOS;
+		long max;
+		while (nanos > (max = mPhases.get(maxIndex))) {
+			if (mPhases.compareAndSet(maxIndex, max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	/** Adds to the total time and count of a phase too fine-grained to time individually */
+	public void addPhaseTotal(int phase, long nanos, int occurrences) {
+		if (occurrences == 0) {
+			return;
+		}
+		mPhases.addAndGet(phase * PHASE_FIELDS + PHASE_COUNT, occurrences);
+		mPhases.addAndGet(phase * PHASE_FIELDS + PHASE_TOTAL_NANOS, nanos);
+	}
+
+	public void incrementCounter(int counter) {
+		mCounters.incrementAndGet(counter);
+	}
+
+	public void recordComponents(int componentType, int examined, int matched) {
+		mComponentsExamined.addAndGet(componentType, examined);
+		mComponentsMatched.addAndGet(componentType, matched);
+	}
+
+	/** Counts one app, scanned or cached, which includes the provider */
+	public void recordProviderHit(int providerIndex) {
+		mProviderHits.incrementAndGet(providerIndex);
+	}
+
+	/** Stops the wall clock for the scan as a whole */
+	public void finish() {
+		mElapsedNanos = System.nanoTime() - mStartNanos;
+	}
+
+	/** Appends every statistic to a detection log, one bracketed line per group */
+	public void appendTo(StringBuilder log) {
+		log.append("[stats: elapsed_ms=").append(mElapsedNanos / 1000000);
+		for (int i = 0; i < COUNTER_NAMES.length; i++) {
+			log.append(' ').append(COUNTER_NAMES[i]).append('=').append(mCounters.get(i));
+		}
+		log.append("]\n");
+
+		for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+			long count = mPhases.get(phase * PHASE_FIELDS + PHASE_COUNT);
+			if (count == 0) {
+				continue;
+			}
+			long total = mPhases.get(phase * PHASE_FIELDS + PHASE_TOTAL_NANOS);
+			log.append("[stats.phase ").append(PHASE_NAMES[phase]);
+			log.append(": n=").append(count);
+			log.append(" total_ms=").append(total / 1000000);
+			log.append(" mean_us=").append(total / count / 1000);
+			long histogramCount = 0;
+			for (int b = 0; b < BUCKETS; b++) {
+				histogramCount += mHistograms.get(phase * BUCKETS + b);
+			}
+			if (histogramCount > 0) {
+				log.append(" max_us=").append(mPhases.get(phase * PHASE_FIELDS + PHASE_MAX_NANOS) / 1000);
+				log.append(" p50_us<=").append(percentile(phase, histogramCount, 50));
+				log.append(" p90_us<=").append(percentile(phase, histogramCount, 90));
+				log.append(" p99_us<=").append(percentile(phase, histogramCount, 99));
+			}
+			log.append("]\n");
+		}
+
+		log.append("[stats.components:");
+		for (int i = 0; i < COMPONENT_TYPES.length; i++) {
+			log.append(' ').append(COMPONENT_TYPES[i]).append('=').append(mComponentsExamined.get(i));
+			log.append('/').append(mComponentsMatched.get(i));
+		}
+		log.append("]\n");
+
+		log.append("[stats.providers:");
+		for (int i = 0; i < mProviderHits.length(); i++) {
+			long hits = mProviderHits.get(i);
+			if (hits > 0) {
+				log.append(' ').append(mRules.getProvider(i).friendlyName).append('=').append(hits);
+			}
+		}
+		log.append("]\n");
+	}
+
+	/** @return The upper bound, in microseconds, of the bucket containing the given percentile of a phase */
+	private long percentile(int phase, long count, int percent) {
+		long target = (count * percent + 99) / 100;
+		long seen = 0;
+		for (int b = 0; b < BUCKETS - 1; b++) {
+			seen += mHistograms.get(phase * BUCKETS + b);
+			if (seen >= target) {
+				return 1L << b;
+			}
+		}
+		return Long.MAX_VALUE;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		appendTo(builder);
+		return builder.toString();
+	}
+}
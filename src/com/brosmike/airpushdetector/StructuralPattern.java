@@ -0,0 +1,310 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A compiled matcher for the small subset of regular expressions needed to describe obfuscated package names, such
+ * as com\.[a-zA-Z]{8,9}\.[a-zA-Z]{8,9}[\d]{6,7}\..*
+ *
+ * A pattern is a sequence of atoms, each optionally followed by a quantifier. Atoms are literal characters (escaped
+ * with a backslash where java.util.regex requires it), ASCII character classes like [a-zA-Z0-9_], \d, and the dot.
+ * Quantifiers are {n}, {m,n}, {m,}, ?, * and +. Anything else (groups, alternation, anchors...) is rejected, so
+ * every accepted pattern means exactly what java.util.regex.Pattern.matches would take it to mean. Like Pattern,
+ * matching counts code points rather than chars, so a dot consumes a whole surrogate pair.
+ *
+ * Matching simulates the pattern as an NFA of at most 64 states held in a single long, so it runs in one pass over
+ * the input and never allocates or backtracks.
+ */
+public class StructuralPattern {
+	private static final int MAX_STATES = 64;
+	private static final int UNBOUNDED = -1;
+
+	private final String mPattern;
+	// Bit i of mAsciiMasks[c] is set if the state i can consume the ASCII character c
+	private final long[] mAsciiMasks = new long[128];
+	// States which can consume any non-ASCII character other than a line terminator (i.e. dot states)
+	private final long mDotMask;
+	// State reached from each state after consuming a character it accepts
+	private final long[] mAdvance;
+	// States reachable from each state (including itself) without consuming anything
+	private final long[] mClosure;
+	private final long mStart;
+	private final long mAccept;
+
+	/** One atom and its quantifier, only used while compiling */
+	private static class Segment {
+		final boolean[] ascii = new boolean[128];
+		boolean dot;
+		int min = 1;
+		int max = 1;
+		int firstState;
+		/**
+		 * States firstState + k count the k characters consumed so far. An unbounded segment loops on its last
+		 * count state. The state after those is where the next segment starts.
+		 */
+		int span() {
+			return max == UNBOUNDED ? min + 1 : max;
+		}
+	}
+
+	/** @throws IllegalArgumentException if pattern uses features outside the supported subset */
+	public StructuralPattern(String pattern) {
+		mPattern = pattern;
+		List<Segment> segments = parse(pattern);
+
+		int stateCount = 1; // The accepting state, after the last segment
+		for (Segment segment : segments) {
+			segment.firstState = stateCount - 1;
+			stateCount += segment.span();
+			if (stateCount > MAX_STATES) {
+				throw tooLong(pattern);
+			}
+		}
+
+		mAdvance = new long[stateCount];
+		mClosure = new long[stateCount];
+		for (int i = 0; i < stateCount; i++) {
+			mClosure[i] = 1L << i;
+		}
+
+		long dotMask = 0;
+		for (Segment segment : segments) {
+			int span = segment.span();
+			int next = segment.firstState + span;
+			for (int k = 0; k < span; k++) {
+				int state = segment.firstState + k;
+				boolean looping = segment.max == UNBOUNDED && k == segment.min;
+				mAdvance[state] = 1L << (looping ? state : state + 1);
+				for (int c = 0; c < 128; c++) {
+					if (segment.ascii[c]) {
+						mAsciiMasks[c] |= 1L << state;
+					}
+				}
+				if (segment.dot) {
+					dotMask |= 1L << state;
+				}
+				// Once min characters are consumed, the rest of this segment may be skipped
+				if (k >= segment.min) {
+					mClosure[state] |= 1L << next;
+				}
+			}
+		}
+		mDotMask = dotMask;
+
+		// Make the closure transitive. States only ever skip forward, so one backwards pass is enough.
+		for (int i = stateCount - 1; i >= 0; i--) {
+			long closure = mClosure[i];
+			for (long rest = closure & ~(1L << i); rest != 0; rest &= rest - 1) {
+				closure |= mClosure[Long.numberOfTrailingZeros(rest)];
+			}
+			mClosure[i] = closure;
+		}
+
+		mStart = mClosure[0];
+		mAccept = 1L << (stateCount - 1);
+	}
+
+	/** @return Whether the entire input matches, exactly as Pattern.matches(pattern, input) would */
+	public boolean matches(CharSequence input) {
+		long active = mStart;
+		for (int i = 0, len = input.length(); i < len && active != 0; ) {
+			int c = Character.codePointAt(input, i);
+			i += Character.charCount(c);
+			long consuming = active & (c < 128 ? mAsciiMasks[c] : (isLineTerminator(c) ? 0 : mDotMask));
+			long next = 0;
+			for (; consuming != 0; consuming &= consuming - 1) {
+				next |= mAdvance[Long.numberOfTrailingZeros(consuming)];
+			}
+			active = 0;
+			for (; next != 0; next &= next - 1) {
+				active |= mClosure[Long.numberOfTrailingZeros(next)];
+			}
+		}
+		return (active & mAccept) != 0;
+	}
+
+	public String pattern() {
+		return mPattern;
+	}
+
+	@Override
+	public String toString() {
+		return mPattern;
+	}
+
+	/** Line terminators as understood by the regex dot without DOTALL or UNIX_LINES */
+	private static boolean isLineTerminator(int c) {
+		return c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029;
+	}
+
+	private static List<Segment> parse(String pattern) {
+		List<Segment> segments = new ArrayList<Segment>();
+		int i = 0;
+		while (i < pattern.length()) {
+			Segment segment = new Segment();
+			char c = pattern.charAt(i++);
+			if (c == '[') {
+				i = parseClass(pattern, i, segment);
+			} else if (c == '.') {
+				segment.dot = true;
+				for (int a = 0; a < 128; a++) {
+					segment.ascii[a] = !isLineTerminator(a);
+				}
+			} else if (c == '\\') {
+				i = parseEscape(pattern, i, segment);
+			} else if ("()|^$*+?{}]".indexOf(c) >= 0 || c >= 128) {
+				throw unsupported(pattern, i - 1);
+			} else {
+				segment.ascii[c] = true;
+			}
+			i = parseQuantifier(pattern, i, segment);
+			segments.add(segment);
+		}
+		return segments;
+	}
+
+	private static int parseEscape(String pattern, int i, Segment segment) {
+		if (i >= pattern.length()) {
+			throw unsupported(pattern, i - 1);
+		}
+		char c = pattern.charAt(i);
+		if (c == 'd') {
+			for (char d = '0'; d <= '9'; d++) {
+				segment.ascii[d] = true;
+			}
+		} else if (c < 128 && !Character.isLetterOrDigit(c)) {
+			segment.ascii[c] = true;
+		} else {
+			throw unsupported(pattern, i - 1);
+		}
+		return i + 1;
+	}
+
+	private static int parseClass(String pattern, int i, Segment segment) {
+		if (i < pattern.length() && pattern.charAt(i) == '^') {
+			throw unsupported(pattern, i);
+		}
+		int start = i;
+		while (i < pattern.length()) {
+			char c = pattern.charAt(i);
+			if (c == ']') {
+				if (i == start) {
+					throw unsupported(pattern, i);
+				}
+				return i + 1;
+			}
+			if (c == '\\') {
+				i = parseEscape(pattern, i + 1, segment);
+				// Pattern would take a following dash as a range from the escaped character, which isn't supported
+				if (i + 1 < pattern.length() && pattern.charAt(i) == '-' && pattern.charAt(i + 1) != ']') {
+					throw unsupported(pattern, i);
+				}
+				continue;
+			}
+			if (c == '[' || c == '&' || c >= 128) {
+				throw unsupported(pattern, i);
+			}
+			if (i + 2 < pattern.length() && pattern.charAt(i + 1) == '-' && pattern.charAt(i + 2) != ']') {
+				char end = pattern.charAt(i + 2);
+				if (end < c || end >= 128 || end == '\\' || end == '[') {
+					throw unsupported(pattern, i);
+				}
+				for (char r = c; r <= end; r++) {
+					segment.ascii[r] = true;
+				}
+				i += 3;
+			} else {
+				segment.ascii[c] = true;
+				i++;
+			}
+		}
+		throw new IllegalArgumentException("Unterminated character class in " + pattern);
+	}
+
+	private static int parseQuantifier(String pattern, int i, Segment segment) {
+		if (i >= pattern.length()) {
+			return i;
+		}
+		char c = pattern.charAt(i);
+		if (c == '?') {
+			segment.min = 0;
+			segment.max = 1;
+		} else if (c == '*') {
+			segment.min = 0;
+			segment.max = UNBOUNDED;
+		} else if (c == '+') {
+			segment.min = 1;
+			segment.max = UNBOUNDED;
+		} else if (c == '{') {
+			int close = pattern.indexOf('}', i);
+			if (close < 0) {
+				throw unsupported(pattern, i);
+			}
+			String bounds = pattern.substring(i + 1, close);
+			int comma = bounds.indexOf(',');
+			if (comma < 0) {
+				segment.min = segment.max = parseBound(pattern, i, bounds);
+			} else {
+				segment.min = parseBound(pattern, i, bounds.substring(0, comma));
+				String max = bounds.substring(comma + 1);
+				segment.max = max.length() == 0 ? UNBOUNDED : parseBound(pattern, i, max);
+			}
+			if (segment.max != UNBOUNDED && segment.max < segment.min) {
+				throw unsupported(pattern, i);
+			}
+			i = close;
+		} else {
+			return i;
+		}
+		i++;
+		// Possessive and reluctant modifiers change what matches() can accept, so don't pretend to support them
+		if (i < pattern.length() && (pattern.charAt(i) == '?' || pattern.charAt(i) == '+')) {
+			throw unsupported(pattern, i);
+		}
+		return i;
+	}
+
+	/** Bounds beyond MAX_STATES could never compile, so they're rejected before they can overflow anything */
+	private static int parseBound(String pattern, int i, String bound) {
+		if (bound.length() == 0) {
+			throw unsupported(pattern, i);
+		}
+		int value = 0;
+		for (int k = 0; k < bound.length(); k++) {
+			char d = bound.charAt(k);
+			if (d < '0' || d > '9') {
+				throw unsupported(pattern, i);
+			}
+			value = value * 10 + (d - '0');
+			if (value > MAX_STATES) {
+				throw tooLong(pattern);
+			}
+		}
+		return value;
+	}
+
+	private static IllegalArgumentException tooLong(String pattern) {
+		return new IllegalArgumentException("Pattern is too long to compile: " + pattern);
+	}
+
+	private static IllegalArgumentException unsupported(String pattern, int index) {
+		return new IllegalArgumentException("Unsupported pattern syntax at index " + index + " of " + pattern);
+	}
+}
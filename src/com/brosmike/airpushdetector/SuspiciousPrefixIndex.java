@@ -0,0 +1,109 @@
+/*
+   Copyright 2013 Daniel Bjorge
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+*/
+
+package com.brosmike.airpushdetector;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each suspicious package prefix found by a scan to the apps containing it
+ *
+ * Apps are numbered in the order they are added and each prefix keeps a BitSet of app ids, so the index costs a
+ * few bits per app per prefix rather than a set of strings. Prefixes shared by many unrelated apps are the best
+ * lead on ad SDKs the rules don't know about yet.
+ *
+ * Not thread safe; build it from the thread consuming scan results.
+ */
+public class SuspiciousPrefixIndex {
+	/** Prefixes in at least this many apps are listed in the detection log */
+	public static final int LOG_MIN_APPS = 2;
+
+	private final List<String> mPackageNames = new ArrayList<String>();
+	private final Map<String, BitSet> mAppsByPrefix = new HashMap<String, BitSet>();
+
+	/** @return The id of a newly added app, to pass to add() */
+	public int addApp(String packageName) {
+		mPackageNames.add(packageName);
+		return mPackageNames.size() - 1;
+	}
+
+	/** Records that an app contains components under a suspicious prefix */
+	public void add(int appId, String prefix) {
+		BitSet apps = mAppsByPrefix.get(prefix);
+		if (apps == null) {
+			apps = new BitSet();
+			mAppsByPrefix.put(prefix, apps);
+		}
+		apps.set(appId);
+	}
+
+	public int getAppCount() {
+		return mPackageNames.size();
+	}
+
+	/** @return How many apps contain prefix */
+	public int getAppCount(String prefix) {
+		BitSet apps = mAppsByPrefix.get(prefix);
+		return apps == null ? 0 : apps.cardinality();
+	}
+
+	/** @return The package names of the apps containing prefix, in the order they were added */
+	public List<String> getApps(String prefix) {
+		List<String> result = new ArrayList<String>();
+		BitSet apps = mAppsByPrefix.get(prefix);
+		if (apps != null) {
+			for (int id = apps.nextSetBit(0); id >= 0; id = apps.nextSetBit(id + 1)) {
+				result.add(mPackageNames.get(id));
+			}
+		}
+		return result;
+	}
+
+	/** @return Every prefix found in at least minApps apps, most widespread first, then alphabetically */
+	public List<String> getPrefixes(int minApps) {
+		final Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (Map.Entry<String, BitSet> entry : mAppsByPrefix.entrySet()) {
+			int count = entry.getValue().cardinality();
+			if (count >= minApps) {
+				counts.put(entry.getKey(), count);
+			}
+		}
+		List<String> prefixes = new ArrayList<String>(counts.keySet());
+		Collections.sort(prefixes, new Comparator<String>() {
+			@Override
+			public int compare(String a, String b) {
+				int byCount = counts.get(b) - counts.get(a);
+				return byCount != 0 ? byCount : a.compareTo(b);
+			}
+		});
+		return prefixes;
+	}
+
+	/** Appends a single detection log line with the app count of every prefix in at least LOG_MIN_APPS apps */
+	public void appendTo(StringBuilder log) {
+		log.append("[prefixes:");
+		for (String prefix : getPrefixes(LOG_MIN_APPS)) {
+			log.append(' ').append(prefix).append('=').append(getAppCount(prefix));
+		}
+		log.append("]\n");
+	}
+}